@@ -1,7 +1,6 @@
 # Example Python plugin.
 #
 # This example can be freely used for any purpose.
-import math
 
 # Run it from the build directory like this:
 #
@@ -27,78 +26,115 @@ import math
 import nbdkit
 import errno
 import requests
-import base64
 
 # There are several variants of the API.  nbdkit will call this
 # function first to determine which one you want to use.  This is the
 # latest version at the time this example was written.
 API_VERSION = 2
 
-disk_length = 65536
-bytes_per_chunk = 3064
+server = "http://localhost:8394"
+device = "default"
+
+# The most the server reads or writes in one request (MAX_RANGE_LENGTH in
+# CraftTTP.java); anything longer is rejected with a 413.
+MAX_RANGE_LENGTH = 32 * 1024 * 1024
 
 
-# This just prints the extra command line parameters, but real plugins
-# should parse them and reject any unknown parameters.
 def config(key, value):
-    nbdkit.debug("ignored parameter %s=%s" % (key, value))
+    global server, device
+    if key == "server":
+        server = value
+    elif key == "device":
+        device = value
+    else:
+        raise RuntimeError("unknown parameter %s" % key)
 
 
 def open(readonly):
     nbdkit.debug("open: readonly=%d" % readonly)
 
-    # You can return any non-NULL Python object from open, and the
-    # same object will be passed as the first arg to the other
-    # callbacks [in the client connected phase].
-    return 1
+    # The server owns the device's geometry, so ask it rather than
+    # assuming a layout here.
+    return check(requests.get(f"{server}/device_info", params={"device": device})).json()
 
 
 def get_size(h):
-    global disk_length
-    return disk_length
+    return h["size"]
+
+
+def block_size(h):
+    sector_size = h["sector_size"] or 4096
+    return (1, sector_size, MAX_RANGE_LENGTH)
 
 
 def pread(h, buf, offset, flags):
-    global disk_length
     data = get_relevant_data(len(buf), offset)
     buf[:len(data)] = data
 
 
 def pwrite(h, buf, offset, flags):
-    global disk
     write_data(len(buf), offset, buf)
 
 
+def can_zero(h):
+    return True
+
+
+def can_fast_zero(h):
+    # Zeroing only updates the allocation map and queues a reset, so it's
+    # always cheaper than writing zeroes.
+    return True
+
+
+def can_trim(h):
+    return True
+
+
+def can_extents(h):
+    return True
+
+
 def zero(h, count, offset, flags):
-    global disk
-    write_data(count, offset, bytearray(count))
+    zero_data(count, offset)
+
+
+def trim(h, count, offset, flags):
+    zero_data(count, offset)
+
+
+def extents(h, count, offset, flags):
+    result = []
+    for extent in check(requests.get(f"{server}/extents", params={"device": device, "offset": offset, "length": count})).json():
+        kind = 0 if extent["allocated"] else nbdkit.EXTENT_HOLE | nbdkit.EXTENT_ZERO
+        result.append((extent["offset"], extent["length"], kind))
+        if flags & nbdkit.FLAG_REQ_ONE:
+            break
+    return result
 
 
 def get_relevant_data(length, offset):
-    global disk_length, bytes_per_chunk
-    data = bytes()
-    while length > 0:
-        chunk_offset = math.floor(offset/bytes_per_chunk)
-        within_chunk_offset = offset % bytes_per_chunk
-        length_in_chunk = min(length, bytes_per_chunk - within_chunk_offset)
-        (chunk_x, chunk_z) = get_chunk_coords_for_index(chunk_offset)
-        data += base64.b64decode(requests.get(f"http://localhost:8394/read_chunk?x={chunk_x}&z={chunk_z}&length={length_in_chunk}&offset={within_chunk_offset}").text)
-        length -= length_in_chunk
-        offset += length_in_chunk
+    data = check(requests.get(f"{server}/read_range", params={"device": device, "offset": offset, "length": length})).content
+    if len(data) != length:
+        nbdkit.set_error(errno.EIO)
+        raise RuntimeError("read %d bytes at %d but the server returned %d" % (length, offset, len(data)))
     return data
 
 
 def write_data(length, offset, data):
-    global disk_length, bytes_per_chunk
-    while length > 0:
-        chunk_offset = math.floor(offset/bytes_per_chunk)
-        within_chunk_offset = offset % bytes_per_chunk
-        length_in_chunk = min(length, bytes_per_chunk - within_chunk_offset)
-        (chunk_x, chunk_z) = get_chunk_coords_for_index(chunk_offset)
-        requests.put(f"http://localhost:8394/write_chunk?x={chunk_x}&z={chunk_z}&offset={within_chunk_offset}", data=base64.b64encode(data[len(data)-length:len(data)-length+length_in_chunk]))
-        length -= length_in_chunk
-        offset += length_in_chunk
-    return data
+    check(requests.put(f"{server}/write_range", params={"device": device, "offset": offset}, data=bytes(data[:length]), headers={"Content-Type": "application/octet-stream"}))
+
+
+def zero_data(length, offset):
+    check(requests.put(f"{server}/zero_range", params={"device": device, "offset": offset, "length": length}))
+
 
-def get_chunk_coords_for_index(chunk_index):
-    return (chunk_index % 10, math.floor(chunk_index/10))
\ No newline at end of file
+def check(response):
+    # Turn the server's error statuses into the errno the NBD client sees.
+    if response.status_code == 507:
+        nbdkit.set_error(errno.ENOSPC)
+    elif response.status_code in (400, 413):
+        nbdkit.set_error(errno.EINVAL)
+    elif not response.ok:
+        nbdkit.set_error(errno.EIO)
+    response.raise_for_status()
+    return response
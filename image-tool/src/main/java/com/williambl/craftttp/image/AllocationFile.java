@@ -0,0 +1,94 @@
+package com.williambl.craftttp.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The world's {@code craftttp_allocation.dat}: which {@value #UNIT} byte units of each chunk the mod has written since
+ * they were last zeroed. The mod reads units which aren't allocated as zeroes without looking at the world, so exports
+ * do the same, and imports mark the units they fill as allocated.
+ */
+final class AllocationFile {
+    static final int UNIT = 512;
+
+    private final Path path;
+    private final Map<String, Object> root;
+    private final Map<Long, BitSet> chunks = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private AllocationFile(Path path, Map<String, Object> root) {
+        this.path = path;
+        this.root = root;
+        for (Object chunkTag : Nbt.getList(this.data(), "chunks")) {
+            var chunk = (Map<String, Object>) chunkTag;
+            if (chunk.get("units") instanceof long[] units) {
+                this.chunks.put(Nbt.getLong(chunk, "pos"), BitSet.valueOf(units));
+            }
+        }
+    }
+
+    /**
+     * @return the world's allocation map, or null if the mod hasn't saved one yet
+     */
+    static AllocationFile load(Path world) throws IOException {
+        Path path = world.resolve("data").resolve("craftttp_allocation.dat");
+        return Files.exists(path) ? new AllocationFile(path, Nbt.readCompressed(path)) : null;
+    }
+
+    /**
+     * @return whether the map tracks a device. Devices it doesn't track are adopted as fully allocated when the server
+     * next starts.
+     */
+    boolean tracks(String device) {
+        return Nbt.getList(this.data(), "devices").contains(device);
+    }
+
+    /**
+     * @return a copy of the allocated units of a chunk, which may be empty
+     */
+    synchronized BitSet units(int chunkX, int chunkZ) {
+        BitSet units = this.chunks.get(pos(chunkX, chunkZ));
+        return units == null ? new BitSet() : (BitSet) units.clone();
+    }
+
+    /**
+     * Replaces the allocated units of a chunk. Nothing is written until {@link #save}.
+     */
+    synchronized void setUnits(int chunkX, int chunkZ, BitSet units) {
+        if (units.isEmpty()) {
+            this.chunks.remove(pos(chunkX, chunkZ));
+        } else {
+            this.chunks.put(pos(chunkX, chunkZ), units);
+        }
+    }
+
+    synchronized void save() throws IOException {
+        List<Object> chunkList = new ArrayList<>();
+        for (Map.Entry<Long, BitSet> entry : this.chunks.entrySet()) {
+            Map<String, Object> chunk = new LinkedHashMap<>();
+            chunk.put("pos", entry.getKey());
+            chunk.put("units", entry.getValue().toLongArray());
+            chunkList.add(chunk);
+        }
+        this.data().put("chunks", new Nbt.ListTag(Nbt.COMPOUND, chunkList));
+        Nbt.writeCompressed(this.path, this.root);
+    }
+
+    private Map<String, Object> data() {
+        return Nbt.getCompound(this.root, "data");
+    }
+
+    /**
+     * @return the same packing as Minecraft's {@code ChunkPos.toLong}
+     */
+    private static long pos(int chunkX, int chunkZ) {
+        return chunkX & 0xFFFFFFFFL | (chunkZ & 0xFFFFFFFFL) << 32;
+    }
+}
@@ -0,0 +1,40 @@
+package com.williambl.craftttp.image;
+
+import java.util.List;
+
+/**
+ * How a cell codec stores bytes in a chunk's blocks, worked out from block names and properties rather than registered
+ * block states. Each format lays bytes out exactly as the mod's codec of the same name does.
+ */
+interface CellFormat {
+    List<CellFormat> ALL = List.of(new TorchLeverFormat(), new WoolFormat());
+
+    static CellFormat byName(String name) {
+        for (CellFormat format : ALL) {
+            if (format.name().equals(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    String name();
+
+    /**
+     * @return how many bytes one chunk can hold
+     */
+    int capacity(WorldHeight height);
+
+    /**
+     * Decodes the first {@code length} bytes of a chunk into {@code out}.
+     */
+    void decode(WorldHeight height, ChunkBlocks blocks, byte[] out, int length);
+
+    /**
+     * Encodes the first {@code length} bytes of {@code data} into a chunk's cells. Blocks which aren't cells are left
+     * alone.
+     *
+     * @return the number of blocks that were changed
+     */
+    int encode(WorldHeight height, ChunkBlocks blocks, byte[] data, int length);
+}
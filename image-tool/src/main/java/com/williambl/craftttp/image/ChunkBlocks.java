@@ -0,0 +1,225 @@
+package com.williambl.craftttp.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The block states of a chunk's NBT, unpacked from each section's palette and packed storage.
+ * <p>
+ * Block states are the palette's compounds, a {@code Name} and optional {@code Properties}. Cells are looked up through
+ * a {@link CellValue}, which is worked out once per palette entry rather than once per block. Sections are only packed
+ * back into the NBT by {@link #save}, with their palettes trimmed to the states still in use.
+ */
+final class ChunkBlocks {
+    private static final int SECTION_BLOCKS = 16 * 16 * 16;
+
+    private final Map<Integer, Section> sections = new HashMap<>();
+
+    private ChunkBlocks() {
+    }
+
+    static ChunkBlocks of(Map<String, Object> chunk) {
+        var blocks = new ChunkBlocks();
+        for (Object sectionTag : Nbt.getList(chunk, "sections")) {
+            @SuppressWarnings("unchecked")
+            var section = (Map<String, Object>) sectionTag;
+            Map<String, Object> states = Nbt.getCompound(section, "block_states");
+            if (!Nbt.getList(states, "palette").isEmpty()) {
+                blocks.sections.put(Nbt.getInt(section, "Y"), new Section(states));
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @return what {@code cellValue} says about the block at {@code (x, y, z)}, or 0 if its section is missing
+     */
+    int get(int x, int y, int z, CellValue cellValue) {
+        Section section = this.sections.get(y >> 4);
+        if (section == null) {
+            return 0;
+        }
+        return section.table(cellValue)[section.ids[(y & 15) << 8 | z << 4 | x]];
+    }
+
+    /**
+     * Sets the block state at {@code (x, y, z)}, if its section exists.
+     */
+    void set(int x, int y, int z, Map<String, Object> state) {
+        Section section = this.sections.get(y >> 4);
+        if (section != null) {
+            section.set((y & 15) << 8 | z << 4 | x, state);
+        }
+    }
+
+    /**
+     * Changes one property of the block state at {@code (x, y, z)}, if its section exists.
+     */
+    void setProperty(int x, int y, int z, String property, String value) {
+        Section section = this.sections.get(y >> 4);
+        if (section != null) {
+            section.setProperty((y & 15) << 8 | z << 4 | x, property, value);
+        }
+    }
+
+    /**
+     * Packs every changed section back into the chunk's NBT.
+     *
+     * @return whether any section had changed
+     */
+    boolean save() {
+        boolean changed = false;
+        for (Section section : this.sections.values()) {
+            if (section.dirty) {
+                section.pack();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static Map<String, Object> withProperty(Map<String, Object> state, String property, String value) {
+        Map<String, Object> properties = new LinkedHashMap<>(Nbt.getCompound(state, "Properties"));
+        properties.put(property, value);
+        Map<String, Object> copy = new LinkedHashMap<>(state);
+        copy.put("Properties", properties);
+        return copy;
+    }
+
+    static String property(Map<String, Object> state, String property) {
+        return Nbt.getCompound(state, "Properties").get(property) instanceof String value ? value : null;
+    }
+
+    /**
+     * @return a key which is the same for equal block states, whatever order their properties are in
+     */
+    private static String key(Map<String, Object> state) {
+        return Nbt.getString(state, "Name") + new TreeMap<>(Nbt.getCompound(state, "Properties"));
+    }
+
+    private static int bits(int paletteSize) {
+        // the same widths Minecraft serialises block states with
+        return paletteSize <= 1 ? 0 : Math.max(4, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+    }
+
+    /**
+     * Works out a cell value for a block state. A value of 0 means the block isn't a memory cell.
+     */
+    @FunctionalInterface
+    interface CellValue {
+        int of(Map<String, Object> state);
+    }
+
+    private static final class Section {
+        private final Map<String, Object> tag;
+        private final List<Map<String, Object>> palette = new ArrayList<>();
+        private final int[] ids = new int[SECTION_BLOCKS];
+        private final Map<CellValue, int[]> tables = new IdentityHashMap<>();
+        private Map<String, Integer> paletteIds;
+        // palette ids with a property changed, keyed by the old id, the property and its new value
+        private final Map<String, Integer> propertyChanges = new HashMap<>();
+        private boolean dirty;
+
+        @SuppressWarnings("unchecked")
+        private Section(Map<String, Object> tag) {
+            this.tag = tag;
+            for (Object state : Nbt.getList(tag, "palette")) {
+                this.palette.add((Map<String, Object>) state);
+            }
+
+            int bits = bits(this.palette.size());
+            if (bits == 0 || !(tag.get("data") instanceof long[] data)) {
+                return;
+            }
+            int perLong = 64 / bits;
+            long mask = (1L << bits) - 1;
+            for (int i = 0; i < SECTION_BLOCKS && i / perLong < data.length; i++) {
+                int id = (int) (data[i / perLong] >>> (i % perLong * bits) & mask);
+                this.ids[i] = id < this.palette.size() ? id : 0;
+            }
+        }
+
+        private int[] table(CellValue cellValue) {
+            int[] table = this.tables.get(cellValue);
+            if (table == null || table.length < this.palette.size()) {
+                table = new int[this.palette.size()];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = cellValue.of(this.palette.get(i));
+                }
+                this.tables.put(cellValue, table);
+            }
+            return table;
+        }
+
+        private void setProperty(int index, String property, String value) {
+            int id = this.propertyChanges.computeIfAbsent(this.ids[index] + " " + property + " " + value,
+                    k -> this.id(withProperty(this.palette.get(this.ids[index]), property, value)));
+            this.setId(index, id);
+        }
+
+        private void set(int index, Map<String, Object> state) {
+            this.setId(index, this.id(state));
+        }
+
+        private void setId(int index, int id) {
+            if (this.ids[index] != id) {
+                this.ids[index] = id;
+                this.dirty = true;
+            }
+        }
+
+        private int id(Map<String, Object> state) {
+            if (this.paletteIds == null) {
+                this.paletteIds = new HashMap<>();
+                for (int i = 0; i < this.palette.size(); i++) {
+                    this.paletteIds.putIfAbsent(key(this.palette.get(i)), i);
+                }
+            }
+
+            return this.paletteIds.computeIfAbsent(key(state), k -> {
+                this.palette.add(state);
+                return this.palette.size() - 1;
+            });
+        }
+
+        private void pack() {
+            // drop states which are no longer used, so the storage is no wider than it needs to be
+            int[] remap = new int[this.palette.size()];
+            List<Map<String, Object>> used = new ArrayList<>();
+            Arrays.fill(remap, -1);
+            for (int i = 0; i < SECTION_BLOCKS; i++) {
+                int id = this.ids[i];
+                if (remap[id] < 0) {
+                    remap[id] = used.size();
+                    used.add(this.palette.get(id));
+                }
+                this.ids[i] = remap[id];
+            }
+            this.palette.clear();
+            this.palette.addAll(used);
+            this.paletteIds = null;
+            this.propertyChanges.clear();
+            this.tables.clear();
+
+            this.tag.put("palette", new Nbt.ListTag(Nbt.COMPOUND, new ArrayList<>(used)));
+            int bits = bits(this.palette.size());
+            if (bits == 0) {
+                this.tag.remove("data");
+            } else {
+                int perLong = 64 / bits;
+                long[] data = new long[(SECTION_BLOCKS + perLong - 1) / perLong];
+                for (int i = 0; i < SECTION_BLOCKS; i++) {
+                    data[i / perLong] |= (long) this.ids[i] << (i % perLong * bits);
+                }
+                this.tag.put("data", data);
+            }
+            this.dirty = false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.williambl.craftttp.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * A block device's geometry, read from the world's device registry. Bytes are laid out over chunks the same way as the
+ * mod's {@code BlockDevice}.
+ */
+record Device(String name, int originX, int originZ, int width, long length, int sectorSize, CellFormat format, boolean compressed) {
+    private static final String DEFAULT_DEVICE = "default";
+
+    /**
+     * Reads a device from {@code data/craftttp_devices.dat}. A world which has never saved its registry only has the
+     * default device.
+     */
+    static Device load(Path world, String name) throws IOException {
+        Path path = world.resolve("data").resolve("craftttp_devices.dat");
+        if (!Files.exists(path)) {
+            if (name.equals(DEFAULT_DEVICE)) {
+                return new Device(DEFAULT_DEVICE, 0, 0, 10, 65536, 0, CellFormat.byName("torch_lever"), false);
+            }
+            throw new IOException("The world has no devices registered");
+        }
+
+        for (Object deviceTag : Nbt.getList(Nbt.getCompound(Nbt.readCompressed(path), "data"), "devices")) {
+            @SuppressWarnings("unchecked")
+            var tag = (Map<String, Object>) deviceTag;
+            if (!Nbt.getString(tag, "name").equals(name)) {
+                continue;
+            }
+
+            // devices saved before codecs could be chosen are all torch/lever
+            CellFormat format = CellFormat.byName(Nbt.getString(tag, "codec"));
+            return new Device(
+                    name,
+                    Nbt.getInt(tag, "origin_x"),
+                    Nbt.getInt(tag, "origin_z"),
+                    Nbt.getInt(tag, "width"),
+                    Nbt.getLong(tag, "length"),
+                    Nbt.getInt(tag, "sector_size"),
+                    format == null ? CellFormat.byName("torch_lever") : format,
+                    Nbt.getBoolean(tag, "compressed")
+            );
+        }
+        throw new IOException("No device called " + name);
+    }
+
+    int bytesPerChunk(WorldHeight height) {
+        int capacity = this.format.capacity(height);
+        return this.sectorSize == 0 ? capacity : capacity / this.sectorSize * this.sectorSize;
+    }
+
+    long chunkCount(WorldHeight height) {
+        int bytesPerChunk = this.bytesPerChunk(height);
+        return (this.length + bytesPerChunk - 1) / bytesPerChunk;
+    }
+
+    int chunkX(long chunkIndex) {
+        return this.originX + (int) (chunkIndex % this.width);
+    }
+
+    int chunkZ(long chunkIndex) {
+        return this.originZ + (int) (chunkIndex / this.width);
+    }
+}
@@ -0,0 +1,282 @@
+package com.williambl.craftttp.image;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a device between a world's region files and a raw disk image, without a running server.
+ * <p>
+ * The image is memory mapped, and the chunks of each region file are decoded or encoded in parallel. The world must
+ * not be open in a server, and the mod's journal must be empty, since the server would otherwise replay writes from
+ * before an import over the top of it.
+ */
+public final class ImageTool {
+    private static final String USAGE = "usage: image-tool export|import <world> <device> <image> [--threads <n>] [--min-y <y>] [--height <blocks>]";
+    private static final int JOURNAL_MAGIC = 0x43544A31; // CTJ1
+    private static final int JOURNAL_RECORD_MAGIC = 0x4A524543; // JREC
+
+    private ImageTool() {
+    }
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int run(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int minY = WorldHeight.OVERWORLD.minY();
+        int height = WorldHeight.OVERWORLD.height();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads" -> threads = intOption(args, ++i);
+                case "--min-y" -> minY = intOption(args, ++i);
+                case "--height" -> height = intOption(args, ++i);
+                default -> positional.add(args[i]);
+            }
+        }
+        if (positional.size() != 4 || !List.of("export", "import").contains(positional.get(0)) || threads < 1 || height < 2) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        Path world = Path.of(positional.get(1));
+        checkWorldClosed(world);
+        Device device = Device.load(world, positional.get(2));
+        if (device.compressed()) {
+            throw new IOException(device.name() + " is compressed, so it can only be copied through the server");
+        }
+
+        var worldHeight = new WorldHeight(minY, height);
+        AllocationFile allocation = AllocationFile.load(world);
+        if (allocation != null && !allocation.tracks(device.name())) {
+            allocation = null;
+        }
+        Path image = Path.of(positional.get(3));
+        var pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        try {
+            return positional.get(0).equals("export")
+                    ? exportImage(world, device, worldHeight, allocation, image, pool, start)
+                    : importImage(world, device, worldHeight, allocation, image, pool, start);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Decodes every chunk of a device into an image. Chunks which haven't been generated read as zeroes, like they do
+     * through the server.
+     */
+    private static int exportImage(Path world, Device device, WorldHeight height, AllocationFile allocation, Path image, ForkJoinPool pool, long start) throws IOException {
+        int bytesPerChunk = device.bytesPerChunk(height);
+        var missing = new AtomicInteger();
+        try (var channel = FileChannel.open(image, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var mapped = new MappedImage(channel, FileChannel.MapMode.READ_WRITE, device.length());
+            forEachChunk(world, device, height, pool, (region, chunkIndex, chunkX, chunkZ) -> {
+                int index = RegionFile.index(chunkX, chunkZ);
+                if (!region.has(index)) {
+                    missing.incrementAndGet();
+                    return false;
+                }
+
+                int length = (int) Math.min(bytesPerChunk, device.length() - chunkIndex * bytesPerChunk);
+                byte[] contents = new byte[length];
+                device.format().decode(height, ChunkBlocks.of(region.chunk(index)), contents, length);
+                if (allocation != null) {
+                    BitSet units = allocation.units(chunkX, chunkZ);
+                    for (int unit = units.nextClearBit(0); unit * AllocationFile.UNIT < length; unit = units.nextClearBit(unit + 1)) {
+                        Arrays.fill(contents, unit * AllocationFile.UNIT, Math.min(length, (unit + 1) * AllocationFile.UNIT), (byte) 0);
+                    }
+                }
+                mapped.put(chunkIndex * bytesPerChunk, contents);
+                return false;
+            });
+            mapped.force();
+        }
+
+        System.out.printf("Exported %s bytes of %s from %s chunks in %.1fs%n", device.length(), device.name(), device.chunkCount(height), (System.nanoTime() - start) / 1e9);
+        if (missing.get() > 0) {
+            System.out.printf("%s chunks haven't been generated and were exported as zeroes%n", missing.get());
+        }
+        return 0;
+    }
+
+    /**
+     * Encodes an image into every chunk of a device, rewriting each region file which changed. The allocation map is
+     * brought up to date, so units the image leaves as zeroes are free and the rest read from the world.
+     */
+    private static int importImage(Path world, Device device, WorldHeight height, AllocationFile allocation, Path image, ForkJoinPool pool, long start) throws IOException {
+        long size = Files.size(image);
+        if (size != device.length()) {
+            throw new IOException("%s is %s bytes, but %s is %s bytes".formatted(image, size, device.name(), device.length()));
+        }
+
+        int bytesPerChunk = device.bytesPerChunk(height);
+        var missing = new AtomicInteger();
+        var changes = new AtomicLong();
+        try (var channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            var mapped = new MappedImage(channel, FileChannel.MapMode.READ_ONLY, size);
+            forEachChunk(world, device, height, pool, (region, chunkIndex, chunkX, chunkZ) -> {
+                int index = RegionFile.index(chunkX, chunkZ);
+                if (!region.has(index)) {
+                    missing.incrementAndGet();
+                    return false;
+                }
+
+                int length = (int) Math.min(bytesPerChunk, device.length() - chunkIndex * bytesPerChunk);
+                byte[] contents = mapped.get(chunkIndex * bytesPerChunk, length);
+                Map<String, Object> chunk = region.chunk(index);
+                var blocks = ChunkBlocks.of(chunk);
+                changes.addAndGet(device.format().encode(height, blocks, contents, length));
+                if (allocation != null) {
+                    allocation.setUnits(chunkX, chunkZ, allocatedUnits(allocation.units(chunkX, chunkZ), contents));
+                }
+                if (!blocks.save()) {
+                    return false;
+                }
+
+                // lit torches give off light, so have the server light the chunk again when it's next loaded
+                chunk.put("isLightOn", (byte) 0);
+                region.putChunk(index, chunk);
+                return true;
+            });
+        }
+        if (allocation != null) {
+            allocation.save();
+        }
+
+        System.out.printf("Imported %s bytes into %s, changing %s cells, in %.1fs%n", size, device.name(), changes.get(), (System.nanoTime() - start) / 1e9);
+        if (missing.get() > 0) {
+            System.err.printf("%s chunks haven't been generated, so their part of the image wasn't imported%n", missing.get());
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return {@code units} with each unit covered by {@code contents} allocated if it holds anything but zeroes, and
+     * unallocated otherwise
+     */
+    private static BitSet allocatedUnits(BitSet units, byte[] contents) {
+        for (int unit = 0; unit * AllocationFile.UNIT < contents.length; unit++) {
+            boolean zero = true;
+            for (int i = unit * AllocationFile.UNIT; i < Math.min(contents.length, (unit + 1) * AllocationFile.UNIT) && zero; i++) {
+                zero = contents[i] == 0;
+            }
+            units.set(unit, !zero);
+        }
+        return units;
+    }
+
+    /**
+     * Runs {@code task} on every chunk of a device, a region file at a time. The chunks of each region are run in
+     * parallel, and the region file is written back if any of them changed it.
+     */
+    private static void forEachChunk(Path world, Device device, WorldHeight height, ForkJoinPool pool, ChunkTask task) throws IOException {
+        Map<List<Integer>, List<Long>> regions = new LinkedHashMap<>();
+        for (long i = 0; i < device.chunkCount(height); i++) {
+            List<Integer> region = List.of(Math.floorDiv(device.chunkX(i), RegionFile.SIZE), Math.floorDiv(device.chunkZ(i), RegionFile.SIZE));
+            regions.computeIfAbsent(region, r -> new ArrayList<>()).add(i);
+        }
+
+        Path directory = world.resolve("region");
+        for (Map.Entry<List<Integer>, List<Long>> entry : regions.entrySet()) {
+            RegionFile region = RegionFile.read(directory, entry.getKey().get(0), entry.getKey().get(1));
+            boolean changed;
+            try {
+                changed = pool.submit(() -> entry.getValue().parallelStream()
+                        .map(i -> {
+                            try {
+                                return task.run(region, i, device.chunkX(i), device.chunkZ(i));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .reduce(false, Boolean::logicalOr)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof UncheckedIOException io ? io.getCause() : new IOException(e.getCause());
+            }
+
+            if (changed) {
+                region.write();
+            }
+        }
+    }
+
+    /**
+     * Refuses to touch a world which a server has open, or whose journal still has writes which haven't reached its
+     * chunks.
+     */
+    private static void checkWorldClosed(Path world) throws IOException {
+        if (!Files.exists(world.resolve("level.dat"))) {
+            throw new IOException(world + " isn't a world folder");
+        }
+
+        Path lock = world.resolve("session.lock");
+        if (Files.exists(lock)) {
+            try (var channel = FileChannel.open(lock, StandardOpenOption.WRITE); FileLock held = channel.tryLock()) {
+                if (held == null) {
+                    throw new IOException(world + " is open in a running server");
+                }
+            } catch (OverlappingFileLockException e) {
+                throw new IOException(world + " is open in a running server");
+            }
+        }
+
+        Path journal = world.resolve("craftttp").resolve("journal.bin");
+        if (Files.exists(journal)) {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            try (var channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+                channel.read(header, 0);
+            }
+            if (header.getInt(0) == JOURNAL_MAGIC && header.getInt(12) == JOURNAL_RECORD_MAGIC && header.getLong(16) == header.getLong(4)) {
+                throw new IOException(world + " has journaled writes which haven't reached its chunks yet; start and stop the server to apply them");
+            }
+        }
+    }
+
+    private static int intOption(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        try {
+            return Integer.parseInt(args[i]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(args[i - 1] + " must be a number");
+        }
+    }
+
+    @FunctionalInterface
+    private interface ChunkTask {
+        /**
+         * @return whether the chunk was changed, and its region file needs writing back
+         */
+        boolean run(RegionFile region, long chunkIndex, int chunkX, int chunkZ) throws IOException;
+    }
+}
@@ -0,0 +1,55 @@
+package com.williambl.craftttp.image;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A disk image mapped into memory in windows of up to {@value #WINDOW} bytes, since one mapping can't be bigger than
+ * 2 GiB. Reads and writes only use absolute positions, so many threads can share it.
+ */
+final class MappedImage {
+    private static final long WINDOW = 1L << 30;
+
+    private final MappedByteBuffer[] windows;
+
+    /**
+     * Maps the first {@code length} bytes of a file. Mapping it read-write grows the file to {@code length}.
+     */
+    MappedImage(FileChannel channel, FileChannel.MapMode mode, long length) throws IOException {
+        this.windows = new MappedByteBuffer[(int) ((length + WINDOW - 1) / WINDOW)];
+        for (int i = 0; i < this.windows.length; i++) {
+            this.windows[i] = channel.map(mode, i * WINDOW, Math.min(WINDOW, length - i * WINDOW));
+        }
+    }
+
+    void put(long offset, byte[] data) {
+        int done = 0;
+        while (done < data.length) {
+            MappedByteBuffer window = this.windows[(int) ((offset + done) / WINDOW)];
+            int position = (int) ((offset + done) % WINDOW);
+            int length = Math.min(data.length - done, window.capacity() - position);
+            window.put(position, data, done, length);
+            done += length;
+        }
+    }
+
+    byte[] get(long offset, int length) {
+        byte[] data = new byte[length];
+        int done = 0;
+        while (done < length) {
+            MappedByteBuffer window = this.windows[(int) ((offset + done) / WINDOW)];
+            int position = (int) ((offset + done) % WINDOW);
+            int part = Math.min(length - done, window.capacity() - position);
+            window.get(position, data, done, part);
+            done += part;
+        }
+        return data;
+    }
+
+    void force() {
+        for (MappedByteBuffer window : this.windows) {
+            window.force();
+        }
+    }
+}
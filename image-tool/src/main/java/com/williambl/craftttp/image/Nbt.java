@@ -0,0 +1,228 @@
+package com.williambl.craftttp.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Just enough of the NBT format to read and write chunks and saved data without Minecraft on the classpath.
+ * <p>
+ * Compounds are {@link LinkedHashMap}s, lists are {@link ListTag}s, and every other tag is the boxed number, array or
+ * string it holds, so a tag which is read and written back comes out the same.
+ */
+final class Nbt {
+    static final byte END = 0;
+    static final byte BYTE = 1;
+    static final byte SHORT = 2;
+    static final byte INT = 3;
+    static final byte LONG = 4;
+    static final byte FLOAT = 5;
+    static final byte DOUBLE = 6;
+    static final byte BYTE_ARRAY = 7;
+    static final byte STRING = 8;
+    static final byte LIST = 9;
+    static final byte COMPOUND = 10;
+    static final byte INT_ARRAY = 11;
+    static final byte LONG_ARRAY = 12;
+
+    private Nbt() {
+    }
+
+    static Map<String, Object> read(DataInput in) throws IOException {
+        if (in.readByte() != COMPOUND) {
+            throw new IOException("Root tag isn't a compound");
+        }
+        in.readUTF();
+        return readCompound(in);
+    }
+
+    static void write(DataOutput out, Map<String, Object> root) throws IOException {
+        out.writeByte(COMPOUND);
+        out.writeUTF("");
+        writeCompound(out, root);
+    }
+
+    /**
+     * Reads a gzipped file, the way saved data is stored.
+     */
+    static Map<String, Object> readCompressed(Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Writes a gzipped file next to {@code path} and then moves it into place, so a crash never leaves it half written.
+     */
+    static void writeCompressed(Path path, Map<String, Object> root) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+            write(out, root);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> getCompound(Map<String, Object> tag, String key) {
+        return tag.get(key) instanceof Map<?, ?> compound ? (Map<String, Object>) compound : Map.of();
+    }
+
+    static List<Object> getList(Map<String, Object> tag, String key) {
+        return tag.get(key) instanceof ListTag list ? list.values() : List.of();
+    }
+
+    static int getInt(Map<String, Object> tag, String key) {
+        return tag.get(key) instanceof Number number ? number.intValue() : 0;
+    }
+
+    static long getLong(Map<String, Object> tag, String key) {
+        return tag.get(key) instanceof Number number ? number.longValue() : 0;
+    }
+
+    static boolean getBoolean(Map<String, Object> tag, String key) {
+        return getInt(tag, key) != 0;
+    }
+
+    static String getString(Map<String, Object> tag, String key) {
+        return tag.get(key) instanceof String string ? string : "";
+    }
+
+    private static Map<String, Object> readCompound(DataInput in) throws IOException {
+        Map<String, Object> compound = new LinkedHashMap<>();
+        byte type;
+        while ((type = in.readByte()) != END) {
+            String key = in.readUTF();
+            compound.put(key, readPayload(in, type));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(DataInput in, byte type) throws IOException {
+        return switch (type) {
+            case BYTE -> in.readByte();
+            case SHORT -> in.readShort();
+            case INT -> in.readInt();
+            case LONG -> in.readLong();
+            case FLOAT -> in.readFloat();
+            case DOUBLE -> in.readDouble();
+            case BYTE_ARRAY -> {
+                byte[] array = new byte[in.readInt()];
+                in.readFully(array);
+                yield array;
+            }
+            case STRING -> in.readUTF();
+            case LIST -> {
+                byte elementType = in.readByte();
+                int length = in.readInt();
+                List<Object> values = new ArrayList<>(Math.max(0, length));
+                for (int i = 0; i < length; i++) {
+                    values.add(readPayload(in, elementType));
+                }
+                yield new ListTag(elementType, values);
+            }
+            case COMPOUND -> readCompound(in);
+            case INT_ARRAY -> {
+                int[] array = new int[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readInt();
+                }
+                yield array;
+            }
+            case LONG_ARRAY -> {
+                long[] array = new long[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readLong();
+                }
+                yield array;
+            }
+            default -> throw new IOException("Unknown tag type " + type);
+        };
+    }
+
+    private static void writeCompound(DataOutput out, Map<String, Object> compound) throws IOException {
+        for (Map.Entry<String, Object> entry : compound.entrySet()) {
+            byte type = typeOf(entry.getValue());
+            out.writeByte(type);
+            out.writeUTF(entry.getKey());
+            writePayload(out, type, entry.getValue());
+        }
+        out.writeByte(END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(DataOutput out, byte type, Object value) throws IOException {
+        switch (type) {
+            case BYTE -> out.writeByte((Byte) value);
+            case SHORT -> out.writeShort((Short) value);
+            case INT -> out.writeInt((Integer) value);
+            case LONG -> out.writeLong((Long) value);
+            case FLOAT -> out.writeFloat((Float) value);
+            case DOUBLE -> out.writeDouble((Double) value);
+            case BYTE_ARRAY -> {
+                byte[] array = (byte[]) value;
+                out.writeInt(array.length);
+                out.write(array);
+            }
+            case STRING -> out.writeUTF((String) value);
+            case LIST -> {
+                var list = (ListTag) value;
+                out.writeByte(list.elementType());
+                out.writeInt(list.values().size());
+                for (Object element : list.values()) {
+                    writePayload(out, list.elementType(), element);
+                }
+            }
+            case COMPOUND -> writeCompound(out, (Map<String, Object>) value);
+            case INT_ARRAY -> {
+                int[] array = (int[]) value;
+                out.writeInt(array.length);
+                for (int i : array) {
+                    out.writeInt(i);
+                }
+            }
+            case LONG_ARRAY -> {
+                long[] array = (long[]) value;
+                out.writeInt(array.length);
+                for (long l : array) {
+                    out.writeLong(l);
+                }
+            }
+            default -> throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static byte typeOf(Object value) throws IOException {
+        if (value instanceof Byte) return BYTE;
+        if (value instanceof Short) return SHORT;
+        if (value instanceof Integer) return INT;
+        if (value instanceof Long) return LONG;
+        if (value instanceof Float) return FLOAT;
+        if (value instanceof Double) return DOUBLE;
+        if (value instanceof byte[]) return BYTE_ARRAY;
+        if (value instanceof String) return STRING;
+        if (value instanceof ListTag) return LIST;
+        if (value instanceof Map<?, ?>) return COMPOUND;
+        if (value instanceof int[]) return INT_ARRAY;
+        if (value instanceof long[]) return LONG_ARRAY;
+        throw new IOException("Can't write " + value.getClass() + " as NBT");
+    }
+
+    /**
+     * A list tag, which keeps its element type so that empty lists are written back the way they were read.
+     */
+    record ListTag(byte elementType, List<Object> values) {
+    }
+}
@@ -0,0 +1,185 @@
+package com.williambl.craftttp.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An Anvil region file, holding 32 by 32 chunks.
+ * <p>
+ * The file starts with a table of where each chunk is and a table of when each was last saved, then holds each chunk
+ * as compressed NBT in whole {@value #SECTOR_SIZE} byte sectors. A chunk too big for its region is stored beside it in
+ * a {@code .mcc} file instead. The whole file is read into memory, and chunks which aren't replaced are written back
+ * without being decompressed.
+ */
+final class RegionFile {
+    static final int SIZE = 32;
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SECTORS = 2;
+    private static final int MAX_SECTORS = 255;
+    private static final byte GZIP = 1;
+    private static final byte ZLIB = 2;
+    private static final byte NONE = 3;
+    private static final int EXTERNAL = 128;
+
+    private final Path directory;
+    private final int regionX;
+    private final int regionZ;
+    private final byte[][] payloads = new byte[SIZE * SIZE][];
+    private final byte[] compression = new byte[SIZE * SIZE];
+    private final int[] timestamps = new int[SIZE * SIZE];
+
+    private RegionFile(Path directory, int regionX, int regionZ) {
+        this.directory = directory;
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+    }
+
+    /**
+     * Reads a region file, or makes an empty region if there isn't one.
+     */
+    static RegionFile read(Path directory, int regionX, int regionZ) throws IOException {
+        var region = new RegionFile(directory, regionX, regionZ);
+        Path path = region.path();
+        if (!Files.exists(path)) {
+            return region;
+        }
+
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.capacity() < HEADER_SECTORS * SECTOR_SIZE) {
+            throw new IOException(path + " is truncated");
+        }
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            int location = file.getInt(i * 4);
+            region.timestamps[i] = file.getInt(SECTOR_SIZE + i * 4);
+            if (location == 0) {
+                continue;
+            }
+
+            int start = (location >>> 8) * SECTOR_SIZE;
+            if (start + 5 > file.capacity()) {
+                throw new IOException("Chunk %s of %s is past the end of the file".formatted(i, path));
+            }
+            int length = file.getInt(start);
+            byte type = file.get(start + 4);
+            if ((type & EXTERNAL) != 0) {
+                region.compression[i] = (byte) (type & ~EXTERNAL);
+                region.payloads[i] = Files.readAllBytes(region.externalPath(i));
+            } else {
+                if (length < 1 || start + 4 + length > file.capacity()) {
+                    throw new IOException("Chunk %s of %s is truncated".formatted(i, path));
+                }
+                region.compression[i] = type;
+                region.payloads[i] = new byte[length - 1];
+                file.get(start + 5, region.payloads[i]);
+            }
+        }
+        return region;
+    }
+
+    static int index(int chunkX, int chunkZ) {
+        return Math.floorMod(chunkX, SIZE) + Math.floorMod(chunkZ, SIZE) * SIZE;
+    }
+
+    synchronized boolean has(int index) {
+        return this.payloads[index] != null;
+    }
+
+    /**
+     * @return the chunk's NBT
+     */
+    Map<String, Object> chunk(int index) throws IOException {
+        byte[] payload;
+        byte type;
+        synchronized (this) {
+            payload = this.payloads[index];
+            type = this.compression[index];
+        }
+
+        InputStream in = new ByteArrayInputStream(payload);
+        in = switch (type) {
+            case GZIP -> new GZIPInputStream(in);
+            case ZLIB -> new InflaterInputStream(in);
+            case NONE -> in;
+            default -> throw new IOException("Chunk %s of %s uses unsupported compression %s".formatted(index, this.path(), type));
+        };
+        try (var data = new DataInputStream(in)) {
+            return Nbt.read(data);
+        }
+    }
+
+    /**
+     * Replaces a chunk, compressing it the way Minecraft does. Nothing is written until {@link #write}.
+     */
+    void putChunk(int index, Map<String, Object> chunk) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            Nbt.write(out, chunk);
+        }
+
+        synchronized (this) {
+            this.payloads[index] = bytes.toByteArray();
+            this.compression[index] = ZLIB;
+            this.timestamps[index] = (int) (System.currentTimeMillis() / 1000);
+        }
+    }
+
+    /**
+     * Writes the region to a new file, then moves it over the old one.
+     */
+    synchronized void write() throws IOException {
+        var out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE);
+        out.write(header.array());
+        int sector = HEADER_SECTORS;
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            header.putInt(SECTOR_SIZE + i * 4, this.timestamps[i]);
+            byte[] payload = this.payloads[i];
+            Path external = this.externalPath(i);
+            if (payload == null) {
+                Files.deleteIfExists(external);
+                continue;
+            }
+
+            int sectors = (5 + payload.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            ByteBuffer chunk;
+            if (sectors > MAX_SECTORS) {
+                Files.write(external, payload);
+                sectors = 1;
+                chunk = ByteBuffer.allocate(SECTOR_SIZE).putInt(1).put((byte) (this.compression[i] | EXTERNAL));
+            } else {
+                Files.deleteIfExists(external);
+                chunk = ByteBuffer.allocate(sectors * SECTOR_SIZE).putInt(payload.length + 1).put(this.compression[i]).put(payload);
+            }
+            header.putInt(i * 4, sector << 8 | sectors);
+            out.write(chunk.array());
+            sector += sectors;
+        }
+
+        byte[] bytes = out.toByteArray();
+        System.arraycopy(header.array(), 0, bytes, 0, header.capacity());
+        Path path = this.path();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, bytes);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path path() {
+        return this.directory.resolve("r.%s.%s.mca".formatted(this.regionX, this.regionZ));
+    }
+
+    private Path externalPath(int index) {
+        return this.directory.resolve("c.%s.%s.mcc".formatted(this.regionX * SIZE + index % SIZE, this.regionZ * SIZE + index / SIZE));
+    }
+}
@@ -0,0 +1,76 @@
+package com.williambl.craftttp.image;
+
+/**
+ * The {@code torch_lever} layout: one bit per torch/lever pair, {@value #BYTES_PER_LAYER} bytes to each layer above the
+ * floor.
+ * <p>
+ * Bits are decoded from the levers rather than the torches, since a torch may not have caught up with its lever when
+ * the world was saved. A powered lever puts its torch out, so a set bit is an unpowered lever. Encoding sets both the
+ * torch and the lever, so the cell is already settled when the world is next loaded.
+ */
+final class TorchLeverFormat implements CellFormat {
+    private static final int BYTES_PER_LAYER = 8;
+    private static final int TORCH_Z = 0;
+    private static final int LEVER_Z = 2;
+
+    private static final int OFF = 1;
+    private static final int ON = 2;
+    private static final ChunkBlocks.CellValue TORCHES = state -> ChunkBlocks.property(state, "lit") != null ? 1 : 0;
+    private static final ChunkBlocks.CellValue LEVERS = state -> ChunkBlocks.property(state, "powered") != null && ChunkBlocks.property(state, "face") != null
+            ? "true".equals(ChunkBlocks.property(state, "powered")) ? ON : OFF
+            : 0;
+
+    @Override
+    public String name() {
+        return "torch_lever";
+    }
+
+    @Override
+    public int capacity(WorldHeight height) {
+        return (height.height() - 1) * BYTES_PER_LAYER;
+    }
+
+    @Override
+    public void decode(WorldHeight height, ChunkBlocks blocks, byte[] out, int length) {
+        for (int index = 0; index < length && index < this.capacity(height); index++) {
+            int y = height.minY() + 1 + index / BYTES_PER_LAYER;
+            int withinLayer = index % BYTES_PER_LAYER;
+            int z = (withinLayer / 2) * 4;
+            int xStart = (withinLayer % 2) * 8;
+            byte result = 0;
+            for (int x = 0; x < 8; x++) {
+                if (blocks.get(xStart + x, y, z + LEVER_Z, LEVERS) == OFF && blocks.get(xStart + x, y, z + TORCH_Z, TORCHES) != 0) {
+                    result |= (byte) (1 << x);
+                }
+            }
+            out[index] = result;
+        }
+    }
+
+    @Override
+    public int encode(WorldHeight height, ChunkBlocks blocks, byte[] data, int length) {
+        int changes = 0;
+        for (int index = 0; index < length && index < this.capacity(height); index++) {
+            int y = height.minY() + 1 + index / BYTES_PER_LAYER;
+            int withinLayer = index % BYTES_PER_LAYER;
+            int torchZ = (withinLayer / 2) * 4 + TORCH_Z;
+            int leverZ = (withinLayer / 2) * 4 + LEVER_Z;
+            int xStart = (withinLayer % 2) * 8;
+            for (int x = 0; x < 8; x++) {
+                int lever = blocks.get(xStart + x, y, leverZ, LEVERS);
+                if (lever == 0 || blocks.get(xStart + x, y, torchZ, TORCHES) == 0) {
+                    continue;
+                }
+
+                boolean isBitOn = ((data[index] >> x) & 1) != 0;
+                if (isBitOn == (lever == OFF)) {
+                    continue;
+                }
+                blocks.setProperty(xStart + x, y, torchZ, "lit", String.valueOf(isBitOn));
+                blocks.setProperty(xStart + x, y, leverZ, "powered", String.valueOf(!isBitOn));
+                changes++;
+            }
+        }
+        return changes;
+    }
+}
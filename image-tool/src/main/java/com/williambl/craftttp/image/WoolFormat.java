@@ -0,0 +1,69 @@
+package com.williambl.craftttp.image;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code wool} layout: four bits in every block of the chunk, as one of the sixteen colours of wool, with the low
+ * nibble of each byte first. Blocks which aren't wool read as 0 and are left alone.
+ */
+final class WoolFormat implements CellFormat {
+    private static final int NIBBLES_PER_LAYER = 16 * 16;
+    private static final int BYTES_PER_LAYER = NIBBLES_PER_LAYER / 2;
+    // in dye colour order, so that white (0) is what a formatted chunk reads as
+    private static final List<String> COLOURS = List.of(
+            "white", "orange", "magenta", "light_blue", "yellow", "lime", "pink", "gray",
+            "light_gray", "cyan", "purple", "blue", "brown", "green", "red", "black"
+    );
+    private static final List<Map<String, Object>> WOOLS = COLOURS.stream()
+            .map(colour -> Map.<String, Object>of("Name", "minecraft:" + colour + "_wool"))
+            .toList();
+    // one more than the nibble a block holds
+    private static final ChunkBlocks.CellValue CELLS = state -> COLOURS.indexOf(colour(Nbt.getString(state, "Name"))) + 1;
+
+    @Override
+    public String name() {
+        return "wool";
+    }
+
+    @Override
+    public int capacity(WorldHeight height) {
+        return height.height() * BYTES_PER_LAYER;
+    }
+
+    @Override
+    public void decode(WorldHeight height, ChunkBlocks blocks, byte[] out, int length) {
+        for (int index = 0; index < length && index < this.capacity(height); index++) {
+            int y = height.minY() + index / BYTES_PER_LAYER;
+            int nibble = (index % BYTES_PER_LAYER) * 2;
+            int low = Math.max(0, blocks.get(nibble & 15, y, nibble >> 4, CELLS) - 1);
+            int high = Math.max(0, blocks.get((nibble + 1) & 15, y, nibble >> 4, CELLS) - 1);
+            out[index] = (byte) (low | high << 4);
+        }
+    }
+
+    @Override
+    public int encode(WorldHeight height, ChunkBlocks blocks, byte[] data, int length) {
+        int changes = 0;
+        for (int index = 0; index < length && index < this.capacity(height); index++) {
+            int y = height.minY() + index / BYTES_PER_LAYER;
+            for (int half = 0; half < 2; half++) {
+                int nibble = (index % BYTES_PER_LAYER) * 2 + half;
+                int cell = blocks.get(nibble & 15, y, nibble >> 4, CELLS);
+                int value = (data[index] >> (half * 4)) & 0xF;
+                if (cell == 0 || cell - 1 == value) {
+                    continue;
+                }
+                blocks.set(nibble & 15, y, nibble >> 4, WOOLS.get(value));
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    private static String colour(String name) {
+        return name.startsWith("minecraft:") && name.endsWith("_wool")
+                ? name.substring("minecraft:".length(), name.length() - "_wool".length())
+                : "";
+    }
+}
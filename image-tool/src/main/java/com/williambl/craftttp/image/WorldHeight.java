@@ -0,0 +1,8 @@
+package com.williambl.craftttp.image;
+
+/**
+ * The vertical extent of the world's chunks, which decides how much each one holds. The overworld's is the default.
+ */
+record WorldHeight(int minY, int height) {
+    static final WorldHeight OVERWORLD = new WorldHeight(-64, 384);
+}
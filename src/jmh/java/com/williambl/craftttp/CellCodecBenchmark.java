@@ -0,0 +1,84 @@
+package com.williambl.craftttp;
+
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding whole chunks, and reading parts of them in and out of order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CellCodecBenchmark {
+    @Param({"torch_lever", "wool"})
+    public String codecName;
+
+    @Param({"512", "4096"})
+    public int readLength;
+
+    private CellCodec codec;
+    private LevelChunkSection[] sections;
+    private int capacity;
+    private byte[] chunkContents;
+    private byte[] out;
+    private int[] randomOffsets;
+    private int nextRead;
+    private int sequentialOffset;
+
+    @Setup
+    public void setup() {
+        this.codec = Objects.requireNonNull(CellCodecs.byName(this.codecName));
+        this.sections = Fixtures.formattedChunk(this.codec);
+        this.capacity = this.codec.capacity(Fixtures.OVERWORLD_HEIGHT);
+        this.chunkContents = new byte[this.capacity];
+        var random = new Random(1234);
+        random.nextBytes(this.chunkContents);
+        this.codec.encode(Fixtures.OVERWORLD_HEIGHT, this.sections, 0, this.chunkContents);
+
+        this.out = new byte[this.capacity];
+        this.randomOffsets = new int[1024];
+        for (int i = 0; i < this.randomOffsets.length; i++) {
+            this.randomOffsets[i] = random.nextInt(Math.max(1, this.capacity - this.readLength));
+        }
+    }
+
+    @Benchmark
+    public byte[] decodeChunk() {
+        this.codec.read(Fixtures.OVERWORLD_HEIGHT, this.sections, 0, this.out, 0, this.capacity);
+        return this.out;
+    }
+
+    @Benchmark
+    public LevelChunkSection[] encodeChunk() {
+        this.codec.encode(Fixtures.OVERWORLD_HEIGHT, this.sections, 0, this.chunkContents);
+        return this.sections;
+    }
+
+    @Benchmark
+    public byte[] randomRead() {
+        int offset = this.randomOffsets[this.nextRead++ & (this.randomOffsets.length - 1)];
+        this.codec.read(Fixtures.OVERWORLD_HEIGHT, this.sections, offset, this.out, 0, this.readLength);
+        return this.out;
+    }
+
+    @Benchmark
+    public byte[] sequentialRead() {
+        if (this.sequentialOffset + this.readLength > this.capacity) {
+            this.sequentialOffset = 0;
+        }
+        this.codec.read(Fixtures.OVERWORLD_HEIGHT, this.sections, this.sequentialOffset, this.out, 0, this.readLength);
+        this.sequentialOffset += this.readLength;
+        return this.out;
+    }
+}
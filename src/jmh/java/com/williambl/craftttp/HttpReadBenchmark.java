@@ -0,0 +1,84 @@
+package com.williambl.craftttp;
+
+import com.sun.net.httpserver.HttpServer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read requests end to end, through an in-process HTTP server running the mod's own {@code /read_range} handler over a
+ * one-chunk device, which decodes a synthetic chunk rather than one from a world.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class HttpReadBenchmark {
+    @Param({"torch_lever", "wool"})
+    public String codecName;
+
+    @Param({"4096"})
+    public int length;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private HttpClient client;
+    private int capacity;
+    private String baseUri;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        CellCodec codec = Objects.requireNonNull(CellCodecs.byName(this.codecName));
+        LevelChunkSection[] sections = Fixtures.formattedChunk(codec);
+        this.capacity = codec.capacity(Fixtures.OVERWORLD_HEIGHT);
+
+        var device = new BlockDevice(DeviceRegistry.DEFAULT_DEVICE, new ChunkPos(0, 0), 1, this.capacity, 0, codec, false);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/read_range", CraftTTP.readRangeHandler(name -> name.equals(device.name()) ? device : null, new Metrics(), (d, offset, length) -> {
+            byte[] contents = new byte[length];
+            // the sections are only read, so they can be shared between handler threads
+            codec.read(Fixtures.OVERWORLD_HEIGHT, sections, (int) offset, contents, 0, length);
+            return contents;
+        }));
+        this.executor = Executors.newFixedThreadPool(8);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+        this.client = HttpClient.newHttpClient();
+        this.baseUri = "http://127.0.0.1:%s/read_range?device=default&length=%s&offset=".formatted(this.server.getAddress().getPort(), this.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    @Benchmark
+    public byte[] readRange() throws IOException, InterruptedException {
+        int offset = ThreadLocalRandom.current().nextInt(this.capacity - this.length);
+        var request = HttpRequest.newBuilder(URI.create(this.baseUri + offset)).GET().build();
+        return this.client.send(request, HttpResponse.BodyHandlers.ofByteArray()).body();
+    }
+}
@@ -0,0 +1,29 @@
+package com.williambl.craftttp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryParamsBenchmark {
+    @Param({
+            "x=12&z=-40",
+            "device=default&offset=1048576&length=131072&mode=bulk",
+            "device=my%20disk&offset=0&length=4096"
+    })
+    public String query;
+
+    @Benchmark
+    public Map<String, String> getQueryParams() {
+        return CraftTTP.getQueryParams(this.query);
+    }
+}
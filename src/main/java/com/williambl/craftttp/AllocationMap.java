@@ -0,0 +1,209 @@
+package com.williambl.craftttp;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.saveddata.SavedData;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Which parts of each memory chunk have been written since they were last zeroed, saved alongside the world.
+ * <p>
+ * Chunks are split into {@value #UNIT} byte units, counted from the start of the chunk. A unit which has never been
+ * written, or which was wholly covered by a zero or trim, reads as zeroes without looking at the world. Devices made
+ * before this map existed are adopted as fully allocated the first time the server starts with them, since there's no
+ * way of knowing which of their bytes were written.
+ */
+public class AllocationMap extends SavedData {
+    public static final int UNIT = 512;
+    private static final String ID = "craftttp_allocation";
+
+    private final Long2ObjectMap<BitSet> chunks = new Long2ObjectOpenHashMap<>();
+    private final Set<String> trackedDevices = new HashSet<>();
+
+    public static AllocationMap get(ServerLevel level) {
+        return level.getDataStorage().computeIfAbsent(AllocationMap::load, AllocationMap::new, ID);
+    }
+
+    private static AllocationMap load(CompoundTag tag) {
+        var map = new AllocationMap();
+        for (Tag chunkTag : tag.getList("chunks", Tag.TAG_COMPOUND)) {
+            var compound = (CompoundTag) chunkTag;
+            map.chunks.put(compound.getLong("pos"), BitSet.valueOf(compound.getLongArray("units")));
+        }
+        for (Tag name : tag.getList("devices", Tag.TAG_STRING)) {
+            map.trackedDevices.add(name.getAsString());
+        }
+        return map;
+    }
+
+    /**
+     * Starts tracking a device which is new, so that all of it reads as zeroes.
+     */
+    public synchronized void track(LevelHeightAccessor level, BlockDevice device) {
+        for (long i = 0; i < device.chunkCount(level); i++) {
+            this.chunks.remove(device.chunkPos(i).toLong());
+        }
+        this.trackedDevices.add(device.name());
+        this.setDirty();
+    }
+
+    /**
+     * Starts tracking a device which already existed, by marking every one of its chunks as allocated. Does nothing if
+     * the device is already tracked.
+     */
+    public synchronized void adopt(LevelHeightAccessor level, BlockDevice device) {
+        if (!this.trackedDevices.add(device.name())) {
+            return;
+        }
+
+        int units = units(device.codec().capacity(level));
+        for (long i = 0; i < device.chunkCount(level); i++) {
+            this.chunks.computeIfAbsent(device.chunkPos(i).toLong(), pos -> new BitSet()).set(0, units);
+        }
+        this.setDirty();
+    }
+
+    /**
+     * Marks every unit of a chunk as unallocated, e.g. once it has been formatted.
+     */
+    public synchronized void clear(ChunkPos pos) {
+        if (this.chunks.remove(pos.toLong()) != null) {
+            this.setDirty();
+        }
+    }
+
+    public synchronized void untrack(String deviceName) {
+        if (this.trackedDevices.remove(deviceName)) {
+            this.setDirty();
+        }
+    }
+
+    /**
+     * Marks every unit touched by {@code [offset, offset + length)} of a chunk as allocated.
+     *
+     * @return the parts of newly allocated units outside the range. Whatever the world holds there was never written
+     * through a device, so they must be zeroed along with the write.
+     */
+    public synchronized List<Run> allocate(ChunkPos pos, int offset, int length) {
+        List<Run> padding = new ArrayList<>();
+        if (length <= 0) {
+            return padding;
+        }
+
+        BitSet units = this.chunks.computeIfAbsent(pos.toLong(), p -> new BitSet());
+        int first = offset / UNIT;
+        int end = units(offset + length);
+        if (!units.get(first) && offset > first * UNIT) {
+            padding.add(new Run(first * UNIT, offset - first * UNIT, true));
+        }
+        if (!units.get(end - 1) && offset + length < end * UNIT) {
+            padding.add(new Run(offset + length, end * UNIT - offset - length, true));
+        }
+        if (units.nextClearBit(first) < end) {
+            units.set(first, end);
+            this.setDirty();
+        }
+        return padding;
+    }
+
+    /**
+     * @return whether any unit touched by {@code [offset, offset + length)} of a chunk is allocated
+     */
+    public synchronized boolean isAllocated(ChunkPos pos, int offset, int length) {
+        @Nullable BitSet units = this.chunks.get(pos.toLong());
+        if (units == null || length <= 0) {
+            return false;
+        }
+
+        int next = units.nextSetBit(offset / UNIT);
+        return next >= 0 && next < units(offset + length);
+    }
+
+    /**
+     * Marks the units wholly inside {@code [offset, offset + length)} of a chunk as unallocated. Only the first
+     * {@code chunkLength} bytes of the chunk are ever used, so a range which reaches them covers the last unit even
+     * if it is only partly used.
+     *
+     * @return the parts of the range which were allocated, and so may still hold non-zero bytes in the world
+     */
+    public synchronized List<Run> zero(ChunkPos pos, int offset, int length, int chunkLength) {
+        List<Run> allocated = this.runs(pos, offset, length).stream().filter(Run::allocated).toList();
+        @Nullable BitSet units = this.chunks.get(pos.toLong());
+        int first = units(offset);
+        int end = offset + length >= chunkLength ? units(chunkLength) : (offset + length) / UNIT;
+        if (units == null || first >= end) {
+            return allocated;
+        }
+
+        int next = units.nextSetBit(first);
+        if (next >= 0 && next < end) {
+            units.clear(first, end);
+            if (units.isEmpty()) {
+                this.chunks.remove(pos.toLong());
+            }
+            this.setDirty();
+        }
+        return allocated;
+    }
+
+    /**
+     * Splits {@code [offset, offset + length)} of a chunk into runs which are either all allocated or all unallocated.
+     */
+    public synchronized List<Run> runs(ChunkPos pos, int offset, int length) {
+        List<Run> runs = new ArrayList<>();
+        @Nullable BitSet units = this.chunks.get(pos.toLong());
+        int end = offset + length;
+        int at = offset;
+        while (at < end) {
+            int unit = at / UNIT;
+            boolean allocated = units != null && units.get(unit);
+            int nextUnit = units == null ? -1 : allocated ? units.nextClearBit(unit) : units.nextSetBit(unit);
+            int runEnd = nextUnit < 0 ? end : (int) Math.min(end, (long) nextUnit * UNIT);
+            runs.add(new Run(at, runEnd - at, allocated));
+            at = runEnd;
+        }
+        return runs;
+    }
+
+    private static int units(int bytes) {
+        return (bytes + UNIT - 1) / UNIT;
+    }
+
+    @Override
+    public synchronized CompoundTag save(CompoundTag tag) {
+        var chunkList = new ListTag();
+        for (Long2ObjectMap.Entry<BitSet> entry : this.chunks.long2ObjectEntrySet()) {
+            var chunkTag = new CompoundTag();
+            chunkTag.putLong("pos", entry.getLongKey());
+            chunkTag.putLongArray("units", entry.getValue().toLongArray());
+            chunkList.add(chunkTag);
+        }
+        tag.put("chunks", chunkList);
+
+        var deviceList = new ListTag();
+        for (String name : this.trackedDevices) {
+            deviceList.add(StringTag.valueOf(name));
+        }
+        tag.put("devices", deviceList);
+        return tag;
+    }
+
+    /**
+     * Part of a chunk, given as an offset and length in bytes from the start of the chunk.
+     */
+    public record Run(int offset, int length, boolean allocated) {
+    }
+}
@@ -0,0 +1,107 @@
+package com.williambl.craftttp;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A block device backed by a rectangle of memory chunks.
+ * <p>
+ * The device's bytes are laid out over its chunks in row-major order: chunk {@code i} is {@code i % width} chunks east
+ * and {@code i / width} chunks south of {@code origin}. With a {@code sectorSize} of 0, every byte a chunk can hold is
+ * used. Otherwise each chunk holds a whole number of sectors, so that a sector-aligned I/O never straddles two chunks.
+ * How many bytes a chunk can hold depends on the {@link CellCodec} its blocks are encoded with.
+ * <p>
+ * A compressed device's {@code length} is what it holds once compressed. Its chunks hold the raw bytes of a
+ * {@link CompressedStore}, laid out the same way in whole slots, and the chunk geometry here is all in raw bytes.
+ */
+public record BlockDevice(String name, ChunkPos origin, int width, long length, int sectorSize, CellCodec codec, boolean compressed) {
+    public int bytesPerChunk(LevelHeightAccessor level) {
+        int capacity = this.codec.capacity(level);
+        int unit = this.compressed ? CompressedStore.SLOT_SIZE : this.sectorSize;
+        return unit == 0 ? capacity : capacity / unit * unit;
+    }
+
+    /**
+     * @return how many raw bytes the device is laid out over
+     */
+    public long physicalLength() {
+        return this.compressed ? CompressedStore.physicalLength(this.length) : this.length;
+    }
+
+    public long chunkCount(LevelHeightAccessor level) {
+        int bytesPerChunk = this.bytesPerChunk(level);
+        return (this.physicalLength() + bytesPerChunk - 1) / bytesPerChunk;
+    }
+
+    public ChunkPos chunkPos(long chunkIndex) {
+        return new ChunkPos(this.origin.x + (int) (chunkIndex % this.width), this.origin.z + (int) (chunkIndex / this.width));
+    }
+
+    /**
+     * @return whether the chunk at {@code pos} holds any of this device's bytes
+     */
+    public boolean contains(LevelHeightAccessor level, ChunkPos pos) {
+        int dx = pos.x - this.origin.x;
+        int dz = pos.z - this.origin.z;
+        return dx >= 0 && dx < this.width && dz >= 0 && (long) dz * this.width + dx < this.chunkCount(level);
+    }
+
+    /**
+     * Splits {@code [offset, offset + length)} into the part held by each chunk, in order.
+     *
+     * @return false if the consumer stopped early
+     */
+    public boolean forEachChunk(LevelHeightAccessor level, long offset, int length, ChunkRangeConsumer consumer) {
+        int bytesPerChunk = this.bytesPerChunk(level);
+        int done = 0;
+        while (done < length) {
+            long chunkIndex = (offset + done) / bytesPerChunk;
+            int offsetInChunk = (int) ((offset + done) % bytesPerChunk);
+            int lengthInChunk = Math.min(length - done, bytesPerChunk - offsetInChunk);
+            if (!consumer.accept(this.chunkPos(chunkIndex), offsetInChunk, done, lengthInChunk)) {
+                return false;
+            }
+            done += lengthInChunk;
+        }
+
+        return true;
+    }
+
+    public CompoundTag save() {
+        var tag = new CompoundTag();
+        tag.putString("name", this.name);
+        tag.putInt("origin_x", this.origin.x);
+        tag.putInt("origin_z", this.origin.z);
+        tag.putInt("width", this.width);
+        tag.putLong("length", this.length);
+        tag.putInt("sector_size", this.sectorSize);
+        tag.putString("codec", this.codec.name());
+        tag.putBoolean("compressed", this.compressed);
+        return tag;
+    }
+
+    public static BlockDevice load(CompoundTag tag) {
+        // devices saved before codecs could be chosen are all torch/lever
+        @Nullable CellCodec codec = CellCodecs.byName(tag.getString("codec"));
+        return new BlockDevice(
+                tag.getString("name"),
+                new ChunkPos(tag.getInt("origin_x"), tag.getInt("origin_z")),
+                tag.getInt("width"),
+                tag.getLong("length"),
+                tag.getInt("sector_size"),
+                codec == null ? CellCodecs.TORCH_LEVER : codec,
+                tag.getBoolean("compressed")
+        );
+    }
+
+    @FunctionalInterface
+    public interface ChunkRangeConsumer {
+        /**
+         * @param done how many bytes of the range came before this chunk's part
+         * @return whether to carry on to the next chunk
+         */
+        boolean accept(ChunkPos pos, int offsetInChunk, int done, int lengthInChunk);
+    }
+}
@@ -0,0 +1,70 @@
+package com.williambl.craftttp;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+/**
+ * A way of storing bytes in the blocks of a chunk.
+ */
+public interface CellCodec {
+    /**
+     * @return the name this codec is saved and selected by
+     */
+    String name();
+
+    /**
+     * @return how many bytes one chunk can hold
+     */
+    int capacity(LevelHeightAccessor level);
+
+    /**
+     * Decodes {@code length} bytes from {@code offset} into {@code out}. Bytes past the end of the chunk read as zero.
+     */
+    default void read(LevelChunk chunk, int offset, byte[] out, int outOffset, int length) {
+        this.read(chunk, chunk.getSections(), offset, out, outOffset, length);
+    }
+
+    /**
+     * Decodes {@code length} bytes from {@code offset} of a chunk's sections into {@code out}.
+     */
+    void read(LevelHeightAccessor level, LevelChunkSection[] sections, int offset, byte[] out, int outOffset, int length);
+
+    /**
+     * Encodes {@code toWrite} into the chunk from {@code offset}, stopping at the end of the chunk.
+     *
+     * @return the number of blocks that were changed
+     */
+    int write(ServerLevel level, LevelChunk chunk, int offset, byte[] toWrite, WriteMode mode);
+
+    /**
+     * @return how many ticks after a write the blocks it changed may still be updating, during which reads shouldn't
+     * trust the world
+     */
+    int settleTicks();
+
+    /**
+     * @return whether a change to or from this state might change what the codec reads
+     */
+    boolean isCellState(BlockState state);
+
+    /**
+     * Updates decoded chunk contents to match a block which has just changed to {@code state}.
+     */
+    void onCellChanged(LevelHeightAccessor level, BlockPos pos, BlockState state, byte[] contents);
+
+    /**
+     * Encodes {@code data} from {@code offset} straight into the block states of a chunk's formatted sections, without
+     * any block updates. Only for chunks nobody is looking at, e.g. ones which are being formatted or imported.
+     */
+    void encode(LevelHeightAccessor level, LevelChunkSection[] sections, int offset, byte[] data);
+
+    /**
+     * Replaces the blocks of a chunk's sections with empty cells. Only the block states are changed: the caller is
+     * responsible for lighting, heightmaps and sending the chunk to players.
+     */
+    void format(LevelHeightAccessor level, LevelChunkSection[] sections);
+}
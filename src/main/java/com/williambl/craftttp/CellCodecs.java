@@ -0,0 +1,45 @@
+package com.williambl.craftttp;
+
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * The cell codecs devices can use.
+ */
+public final class CellCodecs {
+    public static final CellCodec TORCH_LEVER = new TorchLeverCodec();
+    public static final CellCodec WOOL = new WoolCodec();
+    public static final List<CellCodec> ALL = List.of(TORCH_LEVER, WOOL);
+
+    private CellCodecs() {
+    }
+
+    public static @Nullable CellCodec byName(String name) {
+        for (CellCodec codec : ALL) {
+            if (codec.name().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether a change to or from this state might change what any codec reads
+     */
+    public static boolean isCellState(BlockState state) {
+        return CellStates.TABLE[Block.BLOCK_STATE_REGISTRY.getId(state)];
+    }
+
+    private static final class CellStates {
+        private static final boolean[] TABLE = new boolean[Block.BLOCK_STATE_REGISTRY.size()];
+
+        static {
+            for (BlockState state : Block.BLOCK_STATE_REGISTRY) {
+                TABLE[Block.BLOCK_STATE_REGISTRY.getId(state)] = ALL.stream().anyMatch(codec -> codec.isCellState(state));
+            }
+        }
+    }
+}
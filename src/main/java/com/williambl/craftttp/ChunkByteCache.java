@@ -0,0 +1,105 @@
+package com.williambl.craftttp;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.block.state.BlockState;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A shadow copy of the decoded bytes of recently read memory chunks, so that reads which hit it can be answered
+ * without waiting for the server thread.
+ * <p>
+ * Entries are filled in by full-chunk reads on the server thread, and kept up to date by {@link #onBlockChanged} as
+ * the cells of cached chunks change, through the codec each chunk was read with. Least recently used entries are
+ * dropped when the cache grows past its byte limit.
+ */
+public class ChunkByteCache {
+    private final long maxBytes;
+    private final Long2ObjectLinkedOpenHashMap<Entry> entries = new Long2ObjectLinkedOpenHashMap<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public ChunkByteCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code offset} in a cached chunk into {@code out}.
+     *
+     * @return whether the chunk was cached
+     */
+    public synchronized boolean read(ChunkPos pos, int offset, byte[] out, int outOffset, int length) {
+        @Nullable Entry entry = this.entries.getAndMoveToLast(pos.toLong());
+        if (entry == null || offset < 0 || offset + length > entry.contents.length) {
+            this.misses++;
+            return false;
+        }
+        this.hits++;
+
+        System.arraycopy(entry.contents, offset, out, outOffset, length);
+        return true;
+    }
+
+    public synchronized void put(ChunkPos pos, CellCodec codec, byte[] contents) {
+        if (contents.length > this.maxBytes) {
+            return;
+        }
+
+        @Nullable Entry previous = this.entries.putAndMoveToLast(pos.toLong(), new Entry(codec, contents));
+        this.bytes += contents.length - (previous == null ? 0 : previous.contents.length);
+        while (this.bytes > this.maxBytes) {
+            this.bytes -= this.entries.removeFirst().contents.length;
+        }
+    }
+
+    public synchronized void invalidate(ChunkPos pos) {
+        @Nullable Entry previous = this.entries.remove(pos.toLong());
+        if (previous != null) {
+            this.bytes -= previous.contents.length;
+        }
+    }
+
+    /**
+     * Drops every chunk of a device, e.g. because it has been made again with a different codec.
+     */
+    public synchronized void invalidate(LevelHeightAccessor level, BlockDevice device) {
+        for (long i = 0; i < device.chunkCount(level); i++) {
+            this.invalidate(device.chunkPos(i));
+        }
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    public synchronized long bytes() {
+        return this.bytes;
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * Keeps a cached chunk in step with a block change in the world. Called from the server thread whenever a block
+     * state in a loaded chunk changes.
+     */
+    public synchronized void onBlockChanged(ServerLevel level, BlockPos pos, BlockState state) {
+        @Nullable Entry entry = this.entries.get(ChunkPos.asLong(pos));
+        if (entry != null) {
+            entry.codec.onCellChanged(level, pos, state, entry.contents);
+        }
+    }
+
+    private record Entry(CellCodec codec, byte[] contents) {
+    }
+}
@@ -0,0 +1,63 @@
+package com.williambl.craftttp;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.Collection;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks keyed by chunk, so that requests for different chunks can run side by side while requests
+ * for the same chunk are handled strictly in the order they arrive.
+ * <p>
+ * The locks are fair, and a request touching several chunks takes their stripes in index order, so overlapping
+ * requests can't deadlock.
+ */
+public class ChunkLocks {
+    private final ReentrantReadWriteLock[] stripes;
+
+    public ChunkLocks(int stripeCount) {
+        this.stripes = new ReentrantReadWriteLock[HashCommon.nextPowerOfTwo(Math.max(1, stripeCount))];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock(true);
+        }
+    }
+
+    public Held read(Collection<ChunkPos> chunks) {
+        return this.lock(chunks, false);
+    }
+
+    public Held write(Collection<ChunkPos> chunks) {
+        return this.lock(chunks, true);
+    }
+
+    private Held lock(Collection<ChunkPos> chunks, boolean write) {
+        boolean[] wanted = new boolean[this.stripes.length];
+        for (ChunkPos pos : chunks) {
+            wanted[(int) HashCommon.mix(pos.toLong()) & (this.stripes.length - 1)] = true;
+        }
+
+        Lock[] held = new Lock[chunks.size()];
+        int count = 0;
+        for (int i = 0; i < wanted.length; i++) {
+            if (wanted[i]) {
+                Lock lock = write ? this.stripes[i].writeLock() : this.stripes[i].readLock();
+                lock.lock();
+                held[count++] = lock;
+            }
+        }
+
+        int heldCount = count;
+        return () -> {
+            for (int i = heldCount - 1; i >= 0; i--) {
+                held[i].unlock();
+            }
+        };
+    }
+
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,145 @@
+package com.williambl.craftttp;
+
+import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.ChunkStatus;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps memory chunks loaded, so that reads and writes don't have to wait for them to be loaded from disk on the
+ * server thread.
+ * <p>
+ * Every chunk of a device that is accessed gets a ticket which keeps it loaded and block ticking (so that torches keep
+ * responding to their levers). Once more than {@code maxChunks} chunks have tickets, the least recently used ones are
+ * released. When a device is being read or written in order, the next {@code readAhead} chunks are given tickets too,
+ * so that the chunk system starts loading them in the background before they are needed.
+ */
+public class ChunkResidency {
+    private static final TicketType<ChunkPos> TICKET = TicketType.create("craftttp_memory", Comparator.comparingLong(ChunkPos::toLong));
+    // region ticket distance 1 makes the chunk itself block ticking
+    private static final int TICKET_DISTANCE = 1;
+    // how many accesses in a row must carry on from the last before reading ahead
+    private static final int SEQUENTIAL_STREAK = 2;
+
+    private final int maxChunks;
+    private final int readAhead;
+    private final Queue<Access> accesses = new ConcurrentLinkedQueue<>();
+    // only touched on the server thread
+    private final ObjectLinkedOpenHashSet<ChunkPos> pinned = new ObjectLinkedOpenHashSet<>();
+    private final Map<String, Stream> streams = new HashMap<>();
+
+    public ChunkResidency(int maxChunks, int readAhead) {
+        this.maxChunks = maxChunks;
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Records an access to a range of a device. Can be called from any thread; the chunks are pinned on the next tick.
+     * Compressed devices' sectors aren't laid out in order, so accesses to them aren't tracked.
+     */
+    public void access(ServerLevel level, BlockDevice device, long offset, int length) {
+        if (length <= 0 || device.compressed()) {
+            return;
+        }
+
+        int bytesPerChunk = device.bytesPerChunk(level);
+        this.accesses.add(new Access(device, offset / bytesPerChunk, (offset + length - 1) / bytesPerChunk, true));
+    }
+
+    /**
+     * Pins every chunk of a device, up to the limit.
+     */
+    public void pinDevice(ServerLevel level, BlockDevice device) {
+        long chunkCount = device.chunkCount(level);
+        if (chunkCount > 0) {
+            this.accesses.add(new Access(device, 0, Math.min(chunkCount, this.maxChunks) - 1, false));
+        }
+    }
+
+    /**
+     * @return a future which completes once every one of {@code chunks} is loaded. Can be called from any thread, and
+     * doesn't block the server thread while the chunks load.
+     */
+    public CompletableFuture<Void> load(ServerLevel level, Collection<ChunkPos> chunks) {
+        return CompletableFuture.allOf(chunks.stream()
+                .map(pos -> level.getChunkSource().getChunkFuture(pos.x, pos.z, ChunkStatus.FULL, true))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * @return whether a write to the chunk can be applied without waiting for it to load. Chunks which aren't pinned
+     * won't be loaded unless something asks for them, so they are always ready. Must be called on the server thread.
+     */
+    public boolean isReady(ServerLevel level, ChunkPos pos) {
+        return !this.pinned.contains(pos) || level.getChunkSource().hasChunk(pos.x, pos.z);
+    }
+
+    /**
+     * Pins the chunks accessed since the last tick. Must be called on the server thread.
+     */
+    public void tick(ServerLevel level) {
+        Access access;
+        while ((access = this.accesses.poll()) != null) {
+            BlockDevice device = access.device;
+            for (long i = access.firstChunk; i <= access.lastChunk; i++) {
+                this.pin(level, device.chunkPos(i));
+            }
+            if (!access.tracked) {
+                continue;
+            }
+
+            Stream stream = this.streams.computeIfAbsent(device.name(), name -> new Stream());
+            boolean sequential = access.firstChunk == stream.nextChunk || access.firstChunk == stream.nextChunk - 1;
+            stream.streak = sequential ? stream.streak + 1 : 0;
+            stream.nextChunk = access.lastChunk + 1;
+            if (stream.streak >= SEQUENTIAL_STREAK) {
+                long end = Math.min(device.chunkCount(level), stream.nextChunk + this.readAhead);
+                for (long i = stream.nextChunk; i < end; i++) {
+                    this.pin(level, device.chunkPos(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases every ticket. Must be called on the server thread.
+     */
+    public void releaseAll(ServerLevel level) {
+        for (ChunkPos pos : List.copyOf(this.pinned)) {
+            level.getChunkSource().removeRegionTicket(TICKET, pos, TICKET_DISTANCE, pos);
+        }
+        this.pinned.clear();
+        this.streams.clear();
+        this.accesses.clear();
+    }
+
+    private void pin(ServerLevel level, ChunkPos pos) {
+        if (!this.pinned.addAndMoveToLast(pos)) {
+            return;
+        }
+
+        level.getChunkSource().addRegionTicket(TICKET, pos, TICKET_DISTANCE, pos);
+        while (this.pinned.size() > this.maxChunks) {
+            ChunkPos eldest = this.pinned.removeFirst();
+            level.getChunkSource().removeRegionTicket(TICKET, eldest, TICKET_DISTANCE, eldest);
+        }
+    }
+
+    private record Access(BlockDevice device, long firstChunk, long lastChunk, boolean tracked) {
+    }
+
+    private static class Stream {
+        private long nextChunk = -1;
+        private int streak;
+    }
+}
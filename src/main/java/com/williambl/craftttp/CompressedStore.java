@@ -0,0 +1,373 @@
+package com.williambl.craftttp;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.williambl.craftttp.CraftTTP.LOGGER;
+
+/**
+ * Stores a compressed device's sectors LZ4 compressed, so that it holds more than its chunks' raw capacity, and
+ * bus-invert coded, so that overwriting a sector changes as few cells as possible.
+ * <p>
+ * The device's raw bytes hold a sector map followed by {@value #SLOT_SIZE} byte slots. Each map entry gives the stored
+ * length of a {@value #SECTOR_SIZE} byte sector and the slots it is stored in. A sector of zeroes takes no slots, and
+ * one which doesn't compress is stored as it is. Each slot starts with a word of flags, one bit for each of the words
+ * after it, saying whether that word is stored inverted. A word is inverted whenever that changes fewer cells than
+ * storing it as it is over what the slot held before. Sectors are rewritten in the slots they already have wherever
+ * they still fit, since a new value usually has a lot in common with the old one.
+ * <p>
+ * The map lives in the device itself, so its updates go through the write scheduler and the journal like any other
+ * write. A copy is kept in memory, read from the world when the server starts. Reads and writes must be made on the
+ * server thread.
+ */
+public class CompressedStore {
+    public static final int SECTOR_SIZE = 4096;
+    public static final int SLOT_SIZE = 512;
+    private static final int FLAG_BYTES = Long.BYTES;
+    private static final int SLOT_PAYLOAD = SLOT_SIZE - FLAG_BYTES;
+    private static final int MAX_SLOTS = (SECTOR_SIZE + SLOT_PAYLOAD - 1) / SLOT_PAYLOAD;
+    private static final int ENTRY_SIZE = Integer.BYTES * (1 + MAX_SLOTS);
+    // filesystem metadata and text compress at least this well, so a device holds this many times its raw capacity
+    private static final int OVERCOMMIT = 2;
+    // how many map entries to read from the world at once when loading
+    private static final int LOAD_ENTRIES = 16 * 1024;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestJavaInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestJavaInstance().fastDecompressor();
+
+    private final int sectors;
+    private final int mapSlots;
+    private final int totalSlots;
+    private final int[] lengths;
+    private final int[] slots;
+    private final BitSet used = new BitSet();
+    private int nextFree;
+
+    private CompressedStore(long length) {
+        this.sectors = (int) (length / SECTOR_SIZE);
+        this.mapSlots = mapSlots(this.sectors);
+        this.totalSlots = (int) (physicalLength(length) / SLOT_SIZE);
+        this.lengths = new int[this.sectors];
+        this.slots = new int[this.sectors * MAX_SLOTS];
+        this.nextFree = this.mapSlots;
+    }
+
+    /**
+     * @return how many raw bytes a compressed device of {@code length} bytes is laid out over
+     */
+    public static long physicalLength(long length) {
+        long sectors = length / SECTOR_SIZE;
+        long dataSlots = (sectors * MAX_SLOTS + OVERCOMMIT - 1) / OVERCOMMIT;
+        return (mapSlots(sectors) + dataSlots) * SLOT_SIZE;
+    }
+
+    private static int mapSlots(long sectors) {
+        return (int) ((sectors * ENTRY_SIZE + SLOT_SIZE - 1) / SLOT_SIZE);
+    }
+
+    /**
+     * Reads a device's sector map. Entries which are corrupt, or which claim slots another entry already has, are
+     * dropped, so those sectors read as zeroes.
+     */
+    public static CompressedStore load(BlockDevice device, RawIo io) {
+        var store = new CompressedStore(device.length());
+        int dropped = 0;
+        for (int first = 0; first < store.sectors; first += LOAD_ENTRIES) {
+            int count = Math.min(LOAD_ENTRIES, store.sectors - first);
+            ByteBuffer map = ByteBuffer.wrap(io.read((long) first * ENTRY_SIZE, count * ENTRY_SIZE));
+            for (int i = 0; i < count; i++) {
+                if (!store.loadEntry(first + i, map.position(i * ENTRY_SIZE))) {
+                    dropped++;
+                }
+            }
+        }
+
+        if (dropped > 0) {
+            LOGGER.warn("Dropped {} corrupt sector map entries from compressed device {}", dropped, device.name());
+        }
+        return store;
+    }
+
+    private boolean loadEntry(int sector, ByteBuffer entry) {
+        int length = entry.getInt();
+        if (length <= 0 || length > SECTOR_SIZE) {
+            return length == 0;
+        }
+
+        int[] sectorSlots = new int[slotsFor(length)];
+        for (int i = 0; i < sectorSlots.length; i++) {
+            sectorSlots[i] = entry.getInt();
+            if (sectorSlots[i] < this.mapSlots || sectorSlots[i] >= this.totalSlots || this.used.get(sectorSlots[i])) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (sectorSlots[j] == sectorSlots[i]) {
+                    return false;
+                }
+            }
+        }
+
+        this.lengths[sector] = length;
+        for (int i = 0; i < sectorSlots.length; i++) {
+            this.slots[sector * MAX_SLOTS + i] = sectorSlots[i];
+            this.used.set(sectorSlots[i]);
+        }
+        return true;
+    }
+
+    public synchronized byte[] read(RawIo io, long offset, int length) {
+        byte[] out = new byte[length];
+        for (long sector = offset / SECTOR_SIZE; sector * SECTOR_SIZE < offset + length; sector++) {
+            if (this.lengths[(int) sector] == 0) {
+                continue;
+            }
+
+            byte[] contents = this.readSector(io, (int) sector);
+            long sectorStart = sector * SECTOR_SIZE;
+            int from = (int) Math.max(0, offset - sectorStart);
+            int to = (int) Math.min(SECTOR_SIZE, offset + length - sectorStart);
+            System.arraycopy(contents, from, out, (int) (sectorStart + from - offset), to - from);
+        }
+        return out;
+    }
+
+    /**
+     * @throws DeviceFullException if there aren't enough free slots for the compressed data. Sectors before the one
+     * which didn't fit have already been written.
+     */
+    public synchronized void write(RawIo io, long offset, byte[] data) {
+        for (long sector = offset / SECTOR_SIZE; sector * SECTOR_SIZE < offset + data.length; sector++) {
+            long sectorStart = sector * SECTOR_SIZE;
+            int from = (int) Math.max(0, offset - sectorStart);
+            int to = (int) Math.min(SECTOR_SIZE, offset + data.length - sectorStart);
+            byte[] contents = from == 0 && to == SECTOR_SIZE ? new byte[SECTOR_SIZE] : this.readSector(io, (int) sector);
+            System.arraycopy(data, (int) (sectorStart + from - offset), contents, from, to - from);
+            this.storeSector(io, (int) sector, contents);
+        }
+    }
+
+    /**
+     * Zeroes a range. Whole sectors are dropped from the map and their slots freed, without touching the slots.
+     */
+    public synchronized void zero(RawIo io, long offset, long length) {
+        for (long sector = offset / SECTOR_SIZE; sector * SECTOR_SIZE < offset + length; sector++) {
+            if (this.lengths[(int) sector] == 0) {
+                continue;
+            }
+
+            long sectorStart = sector * SECTOR_SIZE;
+            int from = (int) Math.max(0, offset - sectorStart);
+            int to = (int) Math.min(SECTOR_SIZE, offset + length - sectorStart);
+            byte[] contents = from == 0 && to == SECTOR_SIZE ? new byte[SECTOR_SIZE] : this.readSector(io, (int) sector);
+            Arrays.fill(contents, from, to, (byte) 0);
+            this.storeSector(io, (int) sector, contents);
+        }
+    }
+
+    /**
+     * Forgets every sector, e.g. because the device's chunks have been formatted.
+     */
+    public synchronized void clear() {
+        Arrays.fill(this.lengths, 0);
+        Arrays.fill(this.slots, 0);
+        this.used.clear();
+        this.nextFree = this.mapSlots;
+    }
+
+    /**
+     * Splits a range into extents which are either stored or all zeroes, merging neighbours. Can be called from any
+     * thread.
+     */
+    public synchronized List<CraftTTP.Extent> extents(long offset, long length) {
+        List<CraftTTP.Extent> extents = new ArrayList<>();
+        long end = offset + length;
+        long start = offset;
+        while (start < end) {
+            boolean stored = this.lengths[(int) (start / SECTOR_SIZE)] != 0;
+            long stop = (start / SECTOR_SIZE + 1) * SECTOR_SIZE;
+            while (stop < end && (this.lengths[(int) (stop / SECTOR_SIZE)] != 0) == stored) {
+                stop += SECTOR_SIZE;
+            }
+            stop = Math.min(stop, end);
+            extents.add(new CraftTTP.Extent(start, stop - start, stored));
+            start = stop;
+        }
+        return extents;
+    }
+
+    public synchronized long storedBytes() {
+        long bytes = 0;
+        for (int length : this.lengths) {
+            bytes += length;
+        }
+        return bytes;
+    }
+
+    public synchronized long freeBytes() {
+        return (long) (this.totalSlots - this.mapSlots - this.used.cardinality()) * SLOT_PAYLOAD;
+    }
+
+    private byte[] readSector(RawIo io, int sector) {
+        int length = this.lengths[sector];
+        if (length == 0) {
+            return new byte[SECTOR_SIZE];
+        }
+
+        byte[] stored = new byte[slotsFor(length) * SLOT_PAYLOAD];
+        for (int i = 0; i < slotsFor(length); i++) {
+            decodeSlot(io.read(slotOffset(this.slots[sector * MAX_SLOTS + i]), SLOT_SIZE), stored, i * SLOT_PAYLOAD);
+        }
+        if (length == SECTOR_SIZE) {
+            return Arrays.copyOf(stored, SECTOR_SIZE);
+        }
+
+        try {
+            byte[] contents = new byte[SECTOR_SIZE];
+            DECOMPRESSOR.decompress(stored, 0, contents, 0, SECTOR_SIZE);
+            return contents;
+        } catch (LZ4Exception e) {
+            LOGGER.error("Sector {} of a compressed device is corrupt: {}", sector, e.getMessage());
+            return new byte[SECTOR_SIZE];
+        }
+    }
+
+    private void storeSector(RawIo io, int sector, byte[] contents) {
+        int length = 0;
+        byte[] stored = new byte[0];
+        if (!isZero(contents)) {
+            stored = new byte[COMPRESSOR.maxCompressedLength(SECTOR_SIZE)];
+            length = COMPRESSOR.compress(contents, 0, SECTOR_SIZE, stored, 0, stored.length);
+            if (length >= SECTOR_SIZE) {
+                length = SECTOR_SIZE;
+                stored = contents;
+            }
+        }
+
+        int had = slotsFor(this.lengths[sector]);
+        int needed = slotsFor(length);
+        int free = this.totalSlots - this.mapSlots - this.used.cardinality();
+        if (needed - had > free) {
+            throw new DeviceFullException("No room for %s more slots, only %s are free".formatted(needed - had, free));
+        }
+
+        int base = sector * MAX_SLOTS;
+        for (int i = needed; i < had; i++) {
+            this.used.clear(this.slots[base + i]);
+            this.slots[base + i] = 0;
+        }
+        for (int i = had; i < needed; i++) {
+            this.slots[base + i] = this.allocateSlot();
+        }
+        for (int i = 0; i < needed; i++) {
+            long slotOffset = slotOffset(this.slots[base + i]);
+            byte[] previous = io.read(slotOffset, SLOT_SIZE);
+            io.write(slotOffset, encodeSlot(previous, stored, i * SLOT_PAYLOAD, Math.min(SLOT_PAYLOAD, length - i * SLOT_PAYLOAD)));
+        }
+
+        this.lengths[sector] = length;
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).putInt(length);
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            entry.putInt(this.slots[base + i]);
+        }
+        io.write((long) sector * ENTRY_SIZE, entry.array());
+    }
+
+    private int allocateSlot() {
+        int slot = this.used.nextClearBit(this.nextFree);
+        if (slot >= this.totalSlots) {
+            slot = this.used.nextClearBit(this.mapSlots);
+        }
+        this.used.set(slot);
+        this.nextFree = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Codes {@code length} bytes of {@code data} from {@code offset} as a slot, inverting each word which then
+     * differs from the same word of {@code previous} in fewer bits. Words past the data keep what they held before.
+     */
+    private static byte[] encodeSlot(byte[] previous, byte[] data, int offset, int length) {
+        ByteBuffer before = ByteBuffer.wrap(previous);
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        long previousFlags = before.getLong(0);
+        long flags = 0;
+        for (int word = 0; word < SLOT_PAYLOAD / Long.BYTES; word++) {
+            int position = FLAG_BYTES + word * Long.BYTES;
+            long old = before.getLong(position);
+            long wasInverted = previousFlags >>> word & 1;
+            if (word * Long.BYTES >= length) {
+                slot.putLong(position, old);
+                flags |= wasInverted << word;
+                continue;
+            }
+
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                int index = word * Long.BYTES + i;
+                value = value << 8 | (index < length ? data[offset + index] & 0xFF : 0);
+            }
+            int plainCost = Long.bitCount(value ^ old) + (int) wasInverted;
+            int invertedCost = Long.bitCount(~value ^ old) + (int) (1 - wasInverted);
+            if (invertedCost < plainCost) {
+                value = ~value;
+                flags |= 1L << word;
+            }
+            slot.putLong(position, value);
+        }
+
+        // the last flag bit has no word, so leave it as it was
+        flags |= previousFlags & 1L << (SLOT_PAYLOAD / Long.BYTES);
+        slot.putLong(0, flags);
+        return slot.array();
+    }
+
+    private static void decodeSlot(byte[] slot, byte[] out, int outOffset) {
+        ByteBuffer buffer = ByteBuffer.wrap(slot);
+        long flags = buffer.getLong(0);
+        ByteBuffer target = ByteBuffer.wrap(out, outOffset, SLOT_PAYLOAD);
+        for (int word = 0; word < SLOT_PAYLOAD / Long.BYTES; word++) {
+            long value = buffer.getLong(FLAG_BYTES + word * Long.BYTES);
+            target.putLong((flags >>> word & 1) != 0 ? ~value : value);
+        }
+    }
+
+    private static boolean isZero(byte[] contents) {
+        for (byte b : contents) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slotsFor(int length) {
+        return (length + SLOT_PAYLOAD - 1) / SLOT_PAYLOAD;
+    }
+
+    private static long slotOffset(int slot) {
+        return (long) slot * SLOT_SIZE;
+    }
+
+    /**
+     * Reads and writes the raw bytes of a device, beneath the compression.
+     */
+    public interface RawIo {
+        byte[] read(long offset, int length);
+
+        void write(long offset, byte[] data);
+    }
+
+    public static class DeviceFullException extends RuntimeException {
+        public DeviceFullException(String message) {
+            super(message);
+        }
+    }
+}
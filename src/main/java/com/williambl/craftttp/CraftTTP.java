@@ -1,38 +1,37 @@
 package com.williambl.craftttp;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.PlayerLookup;
+import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
+import net.minecraft.commands.SharedSuggestionProvider;
 import net.minecraft.commands.arguments.blocks.BlockStateParser;
 import net.minecraft.core.BlockPos;
-import net.minecraft.core.Direction;
 import net.minecraft.core.registries.Registries;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.protocol.game.ClientboundLevelChunkPacketData;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
-import net.minecraft.sounds.SoundEvents;
-import net.minecraft.sounds.SoundSource;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.ChunkPos;
-import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.HorizontalDirectionalBlock;
-import net.minecraft.world.level.block.LeverBlock;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.block.state.properties.AttachFace;
-import net.minecraft.world.level.block.state.properties.BlockStateProperties;
-import net.minecraft.world.level.chunk.LevelChunk;
-import net.minecraft.world.level.chunk.LevelChunkSection;
-import net.minecraft.world.level.gameevent.GameEvent;
-import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.storage.LevelResource;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,12 +39,24 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.file.Path;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -53,14 +64,69 @@ import static net.minecraft.commands.Commands.*;
 
 public class CraftTTP implements ModInitializer {
     private static final WeakHashMap<MinecraftServer, HttpServer> SERVERS = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, ExecutorService> HTTP_EXECUTORS = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, NbdServer> NBD_SERVERS = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, WriteScheduler> WRITE_SCHEDULERS = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, WriteJournal> JOURNALS = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, ChunkByteCache> CHUNK_CACHES = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, Provisioner> PROVISIONERS = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, ChunkResidency> RESIDENCIES = new WeakHashMap<>();
+    private static final WeakHashMap<MinecraftServer, Metrics> METRICS = new WeakHashMap<>();
     public static final Logger LOGGER = LoggerFactory.getLogger("CraftTTP");
+    private static CraftTTPConfig config;
+    static final int MAX_RANGE_LENGTH = 32 * 1024 * 1024;
+    private static final int MAX_PROVISION_CHUNKS = 64 * 64;
 
     @Override
     public void onInitialize() {
+        config = CraftTTPConfig.load();
+        // the JDK HTTP server reads these once, when the first server is made
+        setPropertyIfAbsent("sun.net.httpserver.idleInterval", Integer.toString(config.httpIdleSeconds()));
+        setPropertyIfAbsent("sun.net.httpserver.maxIdleConnections", Integer.toString(config.httpMaxIdleConnections()));
+
         ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+            @Nullable WriteJournal journal = null;
+            if (config.journal()) {
+                Path journalPath = server.getWorldPath(LevelResource.ROOT).resolve("craftttp").resolve("journal.bin");
+                try {
+                    journal = WriteJournal.open(journalPath);
+                } catch (IOException e) {
+                    LOGGER.error("Failed to open write journal {}, writes won't survive a crash: {}", journalPath, e.getMessage());
+                }
+            }
+            var devices = DeviceRegistry.get(server.overworld());
+            var allocation = AllocationMap.get(server.overworld());
+            for (BlockDevice device : devices.all()) {
+                allocation.adopt(server.overworld(), device);
+            }
+            var writeScheduler = new WriteScheduler(config.writeBudgetNanos(), config.writeBudgetFlips(), journal);
+            WRITE_SCHEDULERS.put(server, writeScheduler);
+            if (journal != null) {
+                JOURNALS.put(server, journal);
+                int replayed = writeScheduler.replayJournal(server.overworld(), entry -> allocation.allocate(entry.pos(), entry.offset(), entry.data().length));
+                if (replayed > 0) {
+                    LOGGER.info("Replayed {} writes from the write journal", replayed);
+                }
+            }
+            var chunkCache = new ChunkByteCache(config.cacheMaxBytes());
+            CHUNK_CACHES.put(server, chunkCache);
+            var chunkLocks = new ChunkLocks(config.lockStripes());
+            var metrics = new Metrics();
+            METRICS.put(server, metrics);
+            var provisioner = new Provisioner(config.provisionBudgetNanos(), chunkCache, allocation);
+            PROVISIONERS.put(server, provisioner);
+            var residency = new ChunkResidency(config.residentChunks(), config.readAheadChunks());
+            RESIDENCIES.put(server, residency);
+            for (BlockDevice device : devices.all()) {
+                residency.pinDevice(server.overworld(), device);
+                if (device.compressed()) {
+                    getStore(server.overworld(), device, chunkCache, writeScheduler, allocation);
+                }
+            }
+
             try {
-                var httpServer = HttpServer.create(new InetSocketAddress(8394), 0);
-                httpServer.createContext("/get_block", httpExchange -> {
+                var httpServer = HttpServer.create(new InetSocketAddress(config.httpPort()), 0);
+                httpServer.createContext("/get_block", timed(metrics, "/get_block", httpExchange -> {
                     if (!verifyHttpMethod(httpExchange, "GET")) {
                         LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
                         return;
@@ -73,10 +139,10 @@ public class CraftTTP implements ModInitializer {
                         return;
                     }
 
-                    var state = server.submit(() -> server.overworld().getBlockState(pos)).join();
+                    var state = submit(server, metrics, () -> server.overworld().getBlockState(pos)).join();
                     respondOk(httpExchange, BlockStateParser.serialize(state));
-                });
-                httpServer.createContext("/set_block", httpExchange -> {
+                }));
+                httpServer.createContext("/set_block", timed(metrics, "/set_block", httpExchange -> {
                     if (!verifyHttpMethod(httpExchange, "PUT")) {
                         LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
                         return;
@@ -102,8 +168,8 @@ public class CraftTTP implements ModInitializer {
 
                     server.execute(() -> server.overworld().setBlockAndUpdate(pos, state));
                     respondOk(httpExchange, BlockStateParser.serialize(state));
-                });
-                httpServer.createContext("/read_chunk", httpExchange -> {
+                }));
+                httpServer.createContext("/read_chunk", timed(metrics, "/read_chunk", httpExchange -> {
                     if (!verifyHttpMethod(httpExchange, "GET")) {
                         LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
                         return;
@@ -122,7 +188,14 @@ public class CraftTTP implements ModInitializer {
                         return;
                     }
 
-                    int maxLengthForChunk = server.submit(() -> server.overworld().getMaxBuildHeight() - server.overworld().getMinBuildHeight() - 1).join() * 8;
+                    CellCodec codec = devices.codecAt(server.overworld(), pos);
+                    int maxLengthForChunk = codec.capacity(server.overworld());
+                    if (offset < 0 || offset > maxLengthForChunk) {
+                        LOGGER.warn("Rejecting {} because offset {} is outside [0, {}]", httpExchange.getRequestURI(), offset, maxLengthForChunk);
+                        httpExchange.sendResponseHeaders(400, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
                     @Nullable Integer length = getIntegerFromQueryString(httpExchange, queryParams, "length", maxLengthForChunk-offset);
                     if (length == null) {
                         LOGGER.warn("Rejecting {} because invalid length", httpExchange.getRequestURI());
@@ -132,18 +205,28 @@ public class CraftTTP implements ModInitializer {
                         LOGGER.warn("Rejecting {} because more content ({}) than can fit in a chunk {}", httpExchange.getRequestURI(), length, maxLengthForChunk);
                         httpExchange.sendResponseHeaders(400, -1);
                         httpExchange.getResponseBody().close();
+                        return;
                     }
                     if (length < 0) {
                         LOGGER.warn("Rejecting {} because negative length ({})", httpExchange.getRequestURI(), length);
                         httpExchange.sendResponseHeaders(400, -1);
                         httpExchange.getResponseBody().close();
+                        return;
                     }
 
-                    LOGGER.info("Request to read {} bytes of data @ {} offset {}", length, pos, offset);
-                    byte[] chunkContents = server.submit(() -> readChunk(server.overworld(), pos, offset, length)).join();
+                    LOGGER.debug("Request to read {} bytes of data @ {} offset {}", length, pos, offset);
+                    byte[] chunkContents = new byte[length];
+                    try (var held = chunkLocks.read(List.of(pos))) {
+                        if (!chunkCache.read(pos, offset, chunkContents, 0, length)) {
+                            residency.load(server.overworld(), List.of(pos)).join();
+                            chunkContents = submit(server, metrics, () -> readChunkCached(server.overworld(), chunkCache, codec, pos, offset, length)).join();
+                        }
+                        writeScheduler.overlay(pos, offset, chunkContents, 0, chunkContents.length);
+                    }
+                    metrics.recordRead(chunkContents.length);
                     respondOk(httpExchange, Base64.getEncoder().encodeToString(chunkContents));
-                });
-                httpServer.createContext("/write_chunk", httpExchange -> {
+                }));
+                httpServer.createContext("/write_chunk", timed(metrics, "/write_chunk", httpExchange -> {
                     if (!verifyHttpMethod(httpExchange, "PUT")) {
                         LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
                         return;
@@ -160,6 +243,11 @@ public class CraftTTP implements ModInitializer {
                         LOGGER.warn("Rejecting {} because invalid offset", httpExchange.getRequestURI());
                         return;
                     }
+                    @Nullable WriteMode mode = getWriteModeFromQueryString(httpExchange, queryParams);
+                    if (mode == null) {
+                        LOGGER.warn("Rejecting {} because invalid write mode", httpExchange.getRequestURI());
+                        return;
+                    }
 
                     byte[] contents;
                     try (var is = new BufferedReader(new InputStreamReader(httpExchange.getRequestBody()))) {
@@ -172,17 +260,325 @@ public class CraftTTP implements ModInitializer {
                         contents = Base64.getDecoder().decode(contentsStr);
                     }
 
-                    LOGGER.info("Request to write {} bytes of data @ {} offset {}", contents.length, pos, offset);
-                    server.execute(() -> writeChunk(server.overworld(), pos, offset, contents));
+                    CellCodec codec = devices.codecAt(server.overworld(), pos);
+                    int capacity = codec.capacity(server.overworld());
+                    if (offset < 0 || (long) offset + contents.length > capacity) {
+                        LOGGER.warn("Rejecting {} because {} bytes at offset {} don't fit in a chunk of {}", httpExchange.getRequestURI(), contents.length, offset, capacity);
+                        httpExchange.sendResponseHeaders(400, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+
+                    LOGGER.debug("Request to write {} bytes of data @ {} offset {}", contents.length, pos, offset);
+                    metrics.recordWrite(contents.length);
+                    // chunks which aren't part of a device are never read through the allocation map
+                    @Nullable AllocationMap chunkAllocation = devices.deviceAt(server.overworld(), pos) == null ? null : allocation;
+                    try (var held = chunkLocks.write(List.of(pos))) {
+                        enqueueChunkWrite(writeScheduler, chunkAllocation, pos, codec, offset, contents, mode);
+                    } catch (IOException e) {
+                        LOGGER.error("Failing {} because the write couldn't be journaled: {}", httpExchange.getRequestURI(), e.getMessage());
+                        httpExchange.sendResponseHeaders(500, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
                     respondOk(httpExchange, "Complete");
-                });
-                httpServer.setExecutor(null);
+                }));
+                httpServer.createContext("/read_range", timed(metrics, "/read_range", readRangeHandler(devices::get, metrics, (device, offset, length) -> {
+                    residency.access(server.overworld(), device, offset, length);
+                    List<ChunkPos> chunks = getChunksForRange(server.overworld(), device, offset, length);
+                    try (var held = chunkLocks.read(chunks)) {
+                        @Nullable byte[] contents = readRangeFromCache(server.overworld(), device, chunkCache, writeScheduler, allocation, offset, length);
+                        if (contents == null) {
+                            residency.load(server.overworld(), chunks).join();
+                            contents = submit(server, metrics, () -> readRange(server.overworld(), device, chunkCache, writeScheduler, allocation, offset, length)).join();
+                        }
+                        return contents;
+                    }
+                })));
+                httpServer.createContext("/write_range", timed(metrics, "/write_range", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "PUT")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+                    @Nullable Long offset = getLongFromQueryString(httpExchange, queryParams, "offset", 0);
+                    if (offset == null) {
+                        LOGGER.warn("Rejecting {} because invalid offset", httpExchange.getRequestURI());
+                        return;
+                    }
+                    if (offset < 0) {
+                        LOGGER.warn("Rejecting {} because negative offset ({})", httpExchange.getRequestURI(), offset);
+                        httpExchange.sendResponseHeaders(400, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+
+                    @Nullable BlockDevice device = getDeviceFromQueryString(httpExchange, queryParams, devices);
+                    if (device == null) {
+                        LOGGER.warn("Rejecting {} because unknown device", httpExchange.getRequestURI());
+                        return;
+                    }
+
+                    @Nullable WriteMode mode = getWriteModeFromQueryString(httpExchange, queryParams);
+                    if (mode == null) {
+                        LOGGER.warn("Rejecting {} because invalid write mode", httpExchange.getRequestURI());
+                        return;
+                    }
+
+                    byte[] contents;
+                    try (var is = httpExchange.getRequestBody()) {
+                        contents = is.readNBytes(MAX_RANGE_LENGTH + 1);
+                    }
+                    if (contents.length > MAX_RANGE_LENGTH) {
+                        LOGGER.warn("Rejecting {} because body is longer than {}", httpExchange.getRequestURI(), MAX_RANGE_LENGTH);
+                        httpExchange.sendResponseHeaders(413, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+                    if (contents.length == 0) {
+                        respondOk(httpExchange, "Complete");
+                        LOGGER.warn("Request to write no data @ device offset {}", offset);
+                        return;
+                    }
+
+                    if (offset + contents.length > device.length()) {
+                        LOGGER.warn("Rejecting {} because it runs past the end of device {}", httpExchange.getRequestURI(), device.name());
+                        httpExchange.sendResponseHeaders(400, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+
+                    LOGGER.debug("Request to write {} bytes of data @ {} offset {}", contents.length, device.name(), offset);
+                    metrics.recordWrite(contents.length);
+                    residency.access(server.overworld(), device, offset, contents.length);
+                    try (var held = chunkLocks.write(getChunksForRange(server.overworld(), device, offset, contents.length))) {
+                        writeRange(metrics, server.overworld(), device, chunkCache, writeScheduler, allocation, offset, contents, mode).join();
+                    } catch (CompletionException e) {
+                        if (e.getCause() instanceof CompressedStore.DeviceFullException) {
+                            LOGGER.warn("Rejecting {} because device {} is full: {}", httpExchange.getRequestURI(), device.name(), e.getCause().getMessage());
+                            httpExchange.sendResponseHeaders(507, -1);
+                        } else if (e.getCause() instanceof UncheckedIOException) {
+                            LOGGER.error("Failing {} because the write couldn't be journaled: {}", httpExchange.getRequestURI(), e.getCause().getMessage());
+                            httpExchange.sendResponseHeaders(500, -1);
+                        } else {
+                            throw e;
+                        }
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+                    respondOk(httpExchange, "Complete");
+                }));
+                httpServer.createContext("/zero_range", timed(metrics, "/zero_range", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "PUT")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+                    @Nullable BlockDevice device = getDeviceFromQueryString(httpExchange, queryParams, devices);
+                    if (device == null) {
+                        LOGGER.warn("Rejecting {} because unknown device", httpExchange.getRequestURI());
+                        return;
+                    }
+
+                    @Nullable Long offset = getLongFromQueryString(httpExchange, queryParams, "offset", 0);
+                    @Nullable Long length = offset == null ? null : getLongFromQueryString(httpExchange, queryParams, "length", -1);
+                    if (offset == null || length == null) {
+                        LOGGER.warn("Rejecting {} because invalid range", httpExchange.getRequestURI());
+                        return;
+                    }
+                    if (offset < 0 || length < 0 || offset + length > device.length()) {
+                        LOGGER.warn("Rejecting {} because the range is outside device {}", httpExchange.getRequestURI(), device.name());
+                        httpExchange.sendResponseHeaders(400, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+
+                    LOGGER.debug("Request to zero {} bytes @ {} offset {}", length, device.name(), offset);
+                    try (var held = chunkLocks.write(getChunksForRange(server.overworld(), device, offset, length))) {
+                        zeroRange(metrics, server.overworld(), device, chunkCache, writeScheduler, allocation, offset, length).join();
+                    } catch (CompletionException e) {
+                        if (e.getCause() instanceof CompressedStore.DeviceFullException) {
+                            LOGGER.warn("Rejecting {} because device {} is full: {}", httpExchange.getRequestURI(), device.name(), e.getCause().getMessage());
+                            httpExchange.sendResponseHeaders(507, -1);
+                        } else if (e.getCause() instanceof UncheckedIOException) {
+                            LOGGER.error("Failing {} because the write couldn't be journaled: {}", httpExchange.getRequestURI(), e.getCause().getMessage());
+                            httpExchange.sendResponseHeaders(500, -1);
+                        } else {
+                            throw e;
+                        }
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+                    respondOk(httpExchange, "Complete");
+                }));
+                httpServer.createContext("/extents", timed(metrics, "/extents", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "GET")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+                    @Nullable BlockDevice device = getDeviceFromQueryString(httpExchange, queryParams, devices);
+                    if (device == null) {
+                        LOGGER.warn("Rejecting {} because unknown device", httpExchange.getRequestURI());
+                        return;
+                    }
+
+                    @Nullable Long offset = getLongFromQueryString(httpExchange, queryParams, "offset", 0);
+                    @Nullable Long length = offset == null ? null : getLongFromQueryString(httpExchange, queryParams, "length", device.length() - offset);
+                    if (offset == null || length == null) {
+                        LOGGER.warn("Rejecting {} because invalid range", httpExchange.getRequestURI());
+                        return;
+                    }
+                    if (offset < 0 || length < 0 || offset + length > device.length()) {
+                        LOGGER.warn("Rejecting {} because the range is outside device {}", httpExchange.getRequestURI(), device.name());
+                        httpExchange.sendResponseHeaders(400, -1);
+                        httpExchange.getResponseBody().close();
+                        return;
+                    }
+
+                    var extents = new JsonArray();
+                    for (Extent extent : getExtents(server.overworld(), devices, device, allocation, offset, length)) {
+                        var json = new JsonObject();
+                        json.addProperty("offset", extent.offset());
+                        json.addProperty("length", extent.length());
+                        json.addProperty("allocated", extent.allocated());
+                        extents.add(json);
+                    }
+                    respondOk(httpExchange, extents.toString());
+                }));
+                httpServer.createContext("/device_info", timed(metrics, "/device_info", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "GET")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+                    @Nullable BlockDevice device = getDeviceFromQueryString(httpExchange, queryParams, devices);
+                    if (device == null) {
+                        LOGGER.warn("Rejecting {} because unknown device", httpExchange.getRequestURI());
+                        return;
+                    }
+
+                    respondOk(httpExchange, getDeviceInfo(server.overworld(), devices, device).toString());
+                }));
+                httpServer.createContext("/provision", timed(metrics, "/provision", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "PUT")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+                    Provisioner.Job job;
+                    if (queryParams.containsKey("device") || !queryParams.containsKey("x")) {
+                        @Nullable BlockDevice device = getDeviceFromQueryString(httpExchange, queryParams, devices);
+                        if (device == null) {
+                            LOGGER.warn("Rejecting {} because unknown device", httpExchange.getRequestURI());
+                            return;
+                        }
+                        job = provisionDevice(server.overworld(), devices, provisioner, device);
+                    } else {
+                        @Nullable ChunkPos pos = getChunkPosFromQueryString(httpExchange, queryParams);
+                        if (pos == null) {
+                            LOGGER.warn("Rejecting {} because no chunkpos", httpExchange.getRequestURI());
+                            return;
+                        }
+                        @Nullable Integer width = getIntegerFromQueryString(httpExchange, queryParams, "width", 1);
+                        @Nullable Integer depth = width == null ? null : getIntegerFromQueryString(httpExchange, queryParams, "depth", 1);
+                        if (width == null || depth == null) {
+                            LOGGER.warn("Rejecting {} because invalid size", httpExchange.getRequestURI());
+                            return;
+                        }
+                        if (width < 1 || depth < 1 || (long) width * depth > MAX_PROVISION_CHUNKS) {
+                            LOGGER.warn("Rejecting {} because size {}x{} is outside [1, {}] chunks", httpExchange.getRequestURI(), width, depth, MAX_PROVISION_CHUNKS);
+                            httpExchange.sendResponseHeaders(400, -1);
+                            httpExchange.getResponseBody().close();
+                            return;
+                        }
+                        @Nullable CellCodec codec = CellCodecs.byName(queryParams.getOrDefault("codec", CellCodecs.TORCH_LEVER.name()));
+                        if (codec == null) {
+                            LOGGER.warn("Rejecting {} because unknown codec", httpExchange.getRequestURI());
+                            httpExchange.sendResponseHeaders(400, -1);
+                            httpExchange.getResponseBody().close();
+                            return;
+                        }
+                        job = provisionRegion(provisioner, pos, width, depth, codec);
+                    }
+
+                    LOGGER.info("Queued provisioning job {}", job);
+                    respondOk(httpExchange, "job %s\nchunks %s\n".formatted(job.id(), job.total()));
+                }));
+                httpServer.createContext("/provision_status", timed(metrics, "/provision_status", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "GET")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+                    @Nullable Integer id = getIntegerFromQueryString(httpExchange, queryParams, "job", -1);
+                    if (id == null) {
+                        LOGGER.warn("Rejecting {} because invalid job", httpExchange.getRequestURI());
+                        return;
+                    }
+
+                    List<Provisioner.Job> jobs = provisioner.jobs();
+                    if (id >= 0) {
+                        jobs = jobs.stream().filter(job -> job.id() == id).toList();
+                        if (jobs.isEmpty()) {
+                            httpExchange.sendResponseHeaders(404, -1);
+                            httpExchange.getResponseBody().close();
+                            return;
+                        }
+                    }
+
+                    respondOk(httpExchange, jobs.stream().map(job -> job + "\n").collect(Collectors.joining()));
+                }));
+                httpServer.createContext("/flush", timed(metrics, "/flush", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "PUT")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    writeScheduler.flush().join();
+                    respondOk(httpExchange, "Complete");
+                }));
+                httpServer.createContext("/metrics", timed(metrics, "/metrics", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "GET")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                    respondOk(httpExchange, metrics.render(writeScheduler, chunkCache));
+                }));
+                httpServer.createContext("/write_queue", timed(metrics, "/write_queue", httpExchange -> {
+                    if (!verifyHttpMethod(httpExchange, "GET")) {
+                        LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                        return;
+                    }
+
+                    respondOk(httpExchange, "chunks %s\nbytes %s\n".formatted(writeScheduler.queuedChunks(), writeScheduler.queuedBytes()));
+                }));
+                var httpExecutor = createHttpExecutor(config.httpThreads());
+                httpServer.setExecutor(httpExecutor);
                 httpServer.start();
                 SERVERS.put(server, httpServer);
+                HTTP_EXECUTORS.put(server, httpExecutor);
                 LOGGER.info("Started CraftTTP server.");
             } catch (IOException e) {
                 LOGGER.error("Failed to make HTTP server: {}", e.getMessage());
             }
+
+            try {
+                var nbdServer = new NbdServer(server, devices, writeScheduler, chunkCache, allocation, residency, chunkLocks, metrics, config.nbdPort(), config.defaultWriteMode(), config.httpThreads() > 0 ? config.httpThreads() : defaultPoolSize());
+                nbdServer.start();
+                NBD_SERVERS.put(server, nbdServer);
+                LOGGER.info("Started CraftTTP NBD server on port {}.", config.nbdPort());
+            } catch (IOException e) {
+                LOGGER.error("Failed to make NBD server: {}", e.getMessage());
+            }
         });
 
         ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
@@ -191,79 +587,119 @@ public class CraftTTP implements ModInitializer {
                 httpServer.stop(2);
                 LOGGER.info("Stopped CraftTTP server.");
             }
+
+            var httpExecutor = HTTP_EXECUTORS.remove(server);
+            if (httpExecutor != null) {
+                httpExecutor.shutdown();
+            }
+
+            var nbdServer = NBD_SERVERS.remove(server);
+            if (nbdServer != null) {
+                nbdServer.stop();
+                LOGGER.info("Stopped CraftTTP NBD server.");
+            }
+
+            // the scheduler is kept until the server has stopped, so that the final save can checkpoint the journal
+            var writeScheduler = WRITE_SCHEDULERS.get(server);
+            if (writeScheduler != null) {
+                writeScheduler.drain(server.overworld());
+            }
+
+            var chunkCache = CHUNK_CACHES.remove(server);
+            if (chunkCache != null) {
+                chunkCache.clear();
+            }
+
+            PROVISIONERS.remove(server);
+            METRICS.remove(server);
+
+            var residency = RESIDENCIES.remove(server);
+            if (residency != null) {
+                residency.releaseAll(server.overworld());
+            }
         });
 
-        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
-            dispatcher.register(
-                    literal("generate_memory").executes(ctx -> {
-                        ChunkPos chunkPos = new ChunkPos(new BlockPos(ctx.getSource().getPosition()));
-                        ServerLevel level = ctx.getSource().getLevel();
-                        LevelChunk chunk = level.getChunk(chunkPos.x, chunkPos.z);
-                        int minY = level.getMinBuildHeight();
-                        int maxY = level.getMaxBuildHeight();
-                        LevelChunkSection[] sections = chunk.getSections();
-                        int i = 0;
-                        for (int y = minY; y < maxY; y++) {
-                            LevelChunkSection section = sections[level.getSectionIndex(y)];
-                            if (section == null) {
-                                section = new LevelChunkSection(y, level.registryAccess().registryOrThrow(Registries.BIOME));
-                                sections[level.getSectionIndex(y)] = section;
-                            }
-                            if (y == minY) {
-                                for (int x = 0; x < 16; x++)
-                                    for (int z = 0; z < 16; z++) {
-                                        section.setBlockState(x, y & 15, z, Blocks.WHITE_WOOL.defaultBlockState());
-                                    }
-                            } else {
-                                for (int z = 0; z < 16; z++) {
-                                    BlockState state = switch (z % 4) {
-                                        case 0 -> Blocks.REDSTONE_WALL_TORCH.defaultBlockState().setValue(BlockStateProperties.HORIZONTAL_FACING, Direction.NORTH).setValue(BlockStateProperties.LIT, false);
-                                        case 1 -> Blocks.ORANGE_WOOL.defaultBlockState();
-                                        case 2 -> Blocks.LEVER.defaultBlockState().setValue(BlockStateProperties.ATTACH_FACE, AttachFace.WALL).setValue(BlockStateProperties.HORIZONTAL_FACING, Direction.SOUTH).setValue(BlockStateProperties.POWERED, true);
-                                        case 3 -> Blocks.SCAFFOLDING.defaultBlockState().setValue(BlockStateProperties.STABILITY_DISTANCE, 0);
-                                        default -> throw new IllegalStateException("Unexpected value: " + z % 4);
-                                    };
-
-                                    for (int x = 0; x < 16; x++) {
-                                        if (state.getBlock() == Blocks.REDSTONE_WALL_TORCH) {
-                                            i++;
-                                        }
-                                        if (state.getBlock() == Blocks.ORANGE_WOOL && x == 8) {
-                                            state = Blocks.MAGENTA_WOOL.defaultBlockState();
-                                        }
-                                        section.setBlockState(x, y & 15, z, state);
-                                    }
-                                }
-                            }
-                        }
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+            WRITE_SCHEDULERS.remove(server);
+            var journal = JOURNALS.remove(server);
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close write journal: {}", e.getMessage());
+                }
+            }
+        });
 
-                        for (var section : sections)
-                            for (int x = 0; x < 16; x++)
-                                for (int z = 0; z < 16; z++) {
-                                    level.getChunkSource().getLightEngine().updateSectionStatus(chunkPos.getBlockAt(x, section.bottomBlockY(), z), false);
-                                }
+        ServerTickEvents.END_SERVER_TICK.register(server -> {
+            ServerLevel level = server.overworld();
+            var residency = RESIDENCIES.get(server);
+            if (residency != null) {
+                residency.tick(level);
+            }
 
-                        for (int x = 0; x < 16; x++)
-                            for (int z = 0; z < 16; z++)
-                                for (var type : Heightmap.Types.values()) {
-                                    chunk.getOrCreateHeightmapUnprimed(type).update(x, maxY, z, chunk.getBlockState(chunkPos.getBlockAt(x, maxY, z)));
-                                }
+            var writeScheduler = WRITE_SCHEDULERS.get(server);
+            if (writeScheduler != null) {
+                writeScheduler.tick(level, pos -> residency == null || residency.isReady(level, pos));
+            }
 
-                        chunk.clearAllBlockEntities();
-                        chunk.setUnsaved(true);
-                        level.getChunkSource().chunkMap.resendChunk(chunk);
+            var provisioner = PROVISIONERS.get(server);
+            if (provisioner != null) {
+                provisioner.tick(level);
+            }
 
-                        ctx.getSource().sendSuccess(Component.literal("Created a block of %s bits (%s bytes) of memory.".formatted(i, i / 8)), true);
+            var metrics = METRICS.get(server);
+            if (metrics != null) {
+                metrics.endTick();
+            }
+        });
 
-                        return Command.SINGLE_SUCCESS;
-                    })
+        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
+            dispatcher.register(
+                    literal("generate_memory")
+                            .executes(ctx -> generateMemory(ctx, CellCodecs.TORCH_LEVER))
+                            .then(argument("codec", StringArgumentType.word()).suggests(CraftTTP::suggestCodecs).executes(ctx -> {
+                                @Nullable CellCodec codec = getCodecArgument(ctx);
+                                return codec == null ? 0 : generateMemory(ctx, codec);
+                            }))
+            );
+            dispatcher.register(
+                    literal("provision")
+                            .then(literal("status").executes(ctx -> {
+                                @Nullable Provisioner provisioner = PROVISIONERS.get(ctx.getSource().getServer());
+                                if (provisioner == null || provisioner.jobs().isEmpty()) {
+                                    ctx.getSource().sendSuccess(Component.literal("No provisioning jobs"), false);
+                                    return 0;
+                                }
+                                for (Provisioner.Job job : provisioner.jobs()) {
+                                    ctx.getSource().sendSuccess(Component.literal("Job %s: %s of %s chunks".formatted(job.id(), job.done(), job.total())), false);
+                                }
+                                return Command.SINGLE_SUCCESS;
+                            }))
+                            .then(argument("width", IntegerArgumentType.integer(1)).then(argument("depth", IntegerArgumentType.integer(1))
+                                    .executes(ctx -> provisionCommand(ctx, CellCodecs.TORCH_LEVER))
+                                    .then(argument("codec", StringArgumentType.word()).suggests(CraftTTP::suggestCodecs).executes(ctx -> {
+                                        @Nullable CellCodec codec = getCodecArgument(ctx);
+                                        return codec == null ? 0 : provisionCommand(ctx, codec);
+                                    }))))
             );
             dispatcher.register(
                     literal("encode_chunk").then(argument("value", StringArgumentType.string()).then(argument("offset", IntegerArgumentType.integer(0)).executes(ctx -> {
                         String value = StringArgumentType.getString(ctx, "value");
                         int offset = IntegerArgumentType.getInteger(ctx, "offset");
                         ChunkPos chunkPos = new ChunkPos(new BlockPos(ctx.getSource().getPosition()));
-                        writeChunk(ctx.getSource().getLevel(), chunkPos, offset, value.getBytes(StandardCharsets.UTF_8));
+                        ServerLevel level = ctx.getSource().getLevel();
+                        DeviceRegistry devices = DeviceRegistry.get(level.getServer().overworld());
+                        CellCodec codec = devices.codecAt(level, chunkPos);
+                        byte[] toWrite = value.getBytes(StandardCharsets.UTF_8);
+                        if (level == level.getServer().overworld() && devices.deviceAt(level, chunkPos) != null && offset < codec.capacity(level)) {
+                            // the same as a write through the device, so that it can be read back through the device
+                            int allocated = Math.min(toWrite.length, codec.capacity(level) - offset);
+                            for (AllocationMap.Run padding : AllocationMap.get(level).allocate(chunkPos, offset, allocated)) {
+                                writeChunk(level, codec, chunkPos, padding.offset(), new byte[padding.length()], WriteMode.CLICKY);
+                            }
+                        }
+                        writeChunk(level, codec, chunkPos, offset, toWrite, WriteMode.CLICKY);
                         ctx.getSource().sendSuccess(Component.literal("Written %s to %s @ an offset of %s bytes".formatted(value, chunkPos, offset)), false);
                         return Command.SINGLE_SUCCESS;
                     })))
@@ -272,16 +708,318 @@ public class CraftTTP implements ModInitializer {
                     literal("decode_chunk").then(argument("length", IntegerArgumentType.integer(1)).executes(ctx -> {
                         int length = IntegerArgumentType.getInteger(ctx, "length");
                         ServerLevel level = ctx.getSource().getLevel();
-                        byte[] result = readChunk(level, new ChunkPos(new BlockPos(ctx.getSource().getPosition())), 0, length);
+                        ChunkPos chunkPos = new ChunkPos(new BlockPos(ctx.getSource().getPosition()));
+                        CellCodec codec = DeviceRegistry.get(level.getServer().overworld()).codecAt(level, chunkPos);
+                        byte[] result = readChunk(level, codec, chunkPos, 0, length);
                         String resultString = new String(result, 0, length, StandardCharsets.UTF_8);
                         ctx.getSource().sendSuccess(Component.literal(resultString), false);
                         return Command.SINGLE_SUCCESS;
                     }))
             );
+            dispatcher.register(
+                    literal("device")
+                            .then(literal("list").executes(ctx -> {
+                                ServerLevel level = ctx.getSource().getServer().overworld();
+                                for (BlockDevice device : DeviceRegistry.get(level).all()) {
+                                    ctx.getSource().sendSuccess(Component.literal("%s: %s%s bytes over %s %s chunks from %s, %s wide".formatted(
+                                            device.name(), device.compressed() ? "compressed " : "", device.length(), device.chunkCount(level), device.codec().name(), device.origin(), device.width())), false);
+                                }
+                                return Command.SINGLE_SUCCESS;
+                            }))
+                            .then(literal("create").then(argument("name", StringArgumentType.word()).then(argument("kib", IntegerArgumentType.integer(1))
+                                    .executes(ctx -> createDevice(ctx, 0, 10, CellCodecs.TORCH_LEVER, false))
+                                    .then(argument("sector_size", IntegerArgumentType.integer(0))
+                                            .executes(ctx -> createDevice(ctx, IntegerArgumentType.getInteger(ctx, "sector_size"), 10, CellCodecs.TORCH_LEVER, false))
+                                            .then(argument("width", IntegerArgumentType.integer(1))
+                                                    .executes(ctx -> createDevice(ctx, IntegerArgumentType.getInteger(ctx, "sector_size"), IntegerArgumentType.getInteger(ctx, "width"), CellCodecs.TORCH_LEVER, false))
+                                                    .then(argument("codec", StringArgumentType.word()).suggests(CraftTTP::suggestCodecs)
+                                                            .executes(ctx -> {
+                                                                @Nullable CellCodec codec = getCodecArgument(ctx);
+                                                                return codec == null ? 0 : createDevice(ctx, IntegerArgumentType.getInteger(ctx, "sector_size"), IntegerArgumentType.getInteger(ctx, "width"), codec, false);
+                                                            })
+                                                            .then(literal("compressed").executes(ctx -> {
+                                                                @Nullable CellCodec codec = getCodecArgument(ctx);
+                                                                return codec == null ? 0 : createDevice(ctx, IntegerArgumentType.getInteger(ctx, "sector_size"), IntegerArgumentType.getInteger(ctx, "width"), codec, true);
+                                                            }))))))))
+                            .then(literal("provision").then(argument("name", StringArgumentType.word()).executes(ctx -> {
+                                String name = StringArgumentType.getString(ctx, "name");
+                                ServerLevel level = ctx.getSource().getServer().overworld();
+                                @Nullable BlockDevice device = DeviceRegistry.get(level).get(name);
+                                @Nullable Provisioner provisioner = PROVISIONERS.get(ctx.getSource().getServer());
+                                if (device == null || provisioner == null) {
+                                    ctx.getSource().sendFailure(Component.literal("No device called %s".formatted(name)));
+                                    return 0;
+                                }
+                                var job = provisionDevice(level, DeviceRegistry.get(level), provisioner, device);
+                                ctx.getSource().sendSuccess(Component.literal("Provisioning %s chunks for device %s as job %s".formatted(job.total(), name, job.id())), true);
+                                return Command.SINGLE_SUCCESS;
+                            })))
+                            .then(literal("remove").then(argument("name", StringArgumentType.word()).executes(ctx -> {
+                                String name = StringArgumentType.getString(ctx, "name");
+                                if (!DeviceRegistry.get(ctx.getSource().getServer().overworld()).remove(name)) {
+                                    ctx.getSource().sendFailure(Component.literal("No device called %s".formatted(name)));
+                                    return 0;
+                                }
+                                AllocationMap.get(ctx.getSource().getServer().overworld()).untrack(name);
+                                ctx.getSource().sendSuccess(Component.literal("Removed device %s".formatted(name)), true);
+                                return Command.SINGLE_SUCCESS;
+                            })))
+            );
         });
     }
 
-    private static Map<String, String> getQueryParams(@Nullable String rawQueryString) {
+    /**
+     * Lays out empty memory cells over the chunk the command source is standing in.
+     */
+    private static int generateMemory(CommandContext<CommandSourceStack> ctx, CellCodec codec) {
+        ChunkPos chunkPos = new ChunkPos(new BlockPos(ctx.getSource().getPosition()));
+        ServerLevel level = ctx.getSource().getLevel();
+        Provisioner.format(level, level.getChunk(chunkPos.x, chunkPos.z), codec);
+
+        var chunkCache = CHUNK_CACHES.get(level.getServer());
+        if (chunkCache != null) {
+            chunkCache.invalidate(chunkPos);
+        }
+        if (level == level.getServer().overworld()) {
+            AllocationMap.get(level).clear(chunkPos);
+        }
+
+        int capacity = codec.capacity(level);
+        ctx.getSource().sendSuccess(Component.literal("Created a block of %s bits (%s bytes) of %s memory.".formatted(capacity * 8, capacity, codec.name())), true);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    /**
+     * Queues the formatting of a region of chunks, from the one the command source is standing in.
+     */
+    private static int provisionCommand(CommandContext<CommandSourceStack> ctx, CellCodec codec) {
+        int width = IntegerArgumentType.getInteger(ctx, "width");
+        int depth = IntegerArgumentType.getInteger(ctx, "depth");
+        @Nullable Provisioner provisioner = PROVISIONERS.get(ctx.getSource().getServer());
+        if (provisioner == null) {
+            return 0;
+        }
+        if ((long) width * depth > MAX_PROVISION_CHUNKS) {
+            ctx.getSource().sendFailure(Component.literal("Can't provision more than %s chunks at once".formatted(MAX_PROVISION_CHUNKS)));
+            return 0;
+        }
+
+        var job = provisionRegion(provisioner, new ChunkPos(new BlockPos(ctx.getSource().getPosition())), width, depth, codec);
+        ctx.getSource().sendSuccess(Component.literal("Provisioning %s chunks as job %s, see /provision status".formatted(job.total(), job.id())), true);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static Provisioner.Job provisionRegion(Provisioner provisioner, ChunkPos origin, int width, int depth, CellCodec codec) {
+        List<ChunkPos> chunks = new ArrayList<>(width * depth);
+        for (int z = 0; z < depth; z++)
+            for (int x = 0; x < width; x++) {
+                chunks.add(new ChunkPos(origin.x + x, origin.z + z));
+            }
+        return provisioner.submit("%sx%s from %s".formatted(width, depth, origin), chunks, codec);
+    }
+
+    private static Provisioner.Job provisionDevice(ServerLevel level, DeviceRegistry devices, Provisioner provisioner, BlockDevice device) {
+        // formatting wipes the sector map along with everything else
+        @Nullable CompressedStore store = devices.store(device.name());
+        if (store != null) {
+            store.clear();
+        }
+        // and the whole device reads as zeroes straight away, rather than once each chunk has been formatted
+        AllocationMap.get(level).track(level, device);
+        var chunkCache = CHUNK_CACHES.get(level.getServer());
+        if (chunkCache != null) {
+            chunkCache.invalidate(level, device);
+        }
+        long chunkCount = device.chunkCount(level);
+        List<ChunkPos> chunks = new ArrayList<>();
+        for (long i = 0; i < chunkCount; i++) {
+            chunks.add(device.chunkPos(i));
+        }
+        return provisioner.submit("device " + device.name(), chunks, device.codec());
+    }
+
+    private static CompletableFuture<Suggestions> suggestCodecs(CommandContext<CommandSourceStack> ctx, SuggestionsBuilder builder) {
+        return SharedSuggestionProvider.suggest(CellCodecs.ALL.stream().map(CellCodec::name), builder);
+    }
+
+    private static @Nullable CellCodec getCodecArgument(CommandContext<CommandSourceStack> ctx) {
+        String name = StringArgumentType.getString(ctx, "codec");
+        @Nullable CellCodec codec = CellCodecs.byName(name);
+        if (codec == null) {
+            ctx.getSource().sendFailure(Component.literal("No codec called %s".formatted(name)));
+        }
+        return codec;
+    }
+
+    /**
+     * Registers a device whose first chunk is the one the command source is standing in. Compressed devices always
+     * have {@value CompressedStore#SECTOR_SIZE} byte sectors.
+     */
+    private static int createDevice(CommandContext<CommandSourceStack> ctx, int sectorSize, int width, CellCodec codec, boolean compressed) {
+        String name = StringArgumentType.getString(ctx, "name");
+        long length = IntegerArgumentType.getInteger(ctx, "kib") * 1024L;
+        ServerLevel level = ctx.getSource().getServer().overworld();
+        int capacity = codec.capacity(level);
+        if (compressed) {
+            if (sectorSize != 0 && sectorSize != CompressedStore.SECTOR_SIZE) {
+                ctx.getSource().sendFailure(Component.literal("Compressed devices have %s byte sectors".formatted(CompressedStore.SECTOR_SIZE)));
+                return 0;
+            }
+            sectorSize = CompressedStore.SECTOR_SIZE;
+        } else if (sectorSize != 0 && (Integer.bitCount(sectorSize) != 1 || sectorSize > capacity)) {
+            ctx.getSource().sendFailure(Component.literal("Sector size must be a power of two no bigger than a chunk's %s bytes".formatted(capacity)));
+            return 0;
+        }
+        if (sectorSize != 0 && length % sectorSize != 0) {
+            ctx.getSource().sendFailure(Component.literal("Device length must be a whole number of %s byte sectors".formatted(sectorSize)));
+            return 0;
+        }
+
+        var device = new BlockDevice(name, new ChunkPos(new BlockPos(ctx.getSource().getPosition())), width, length, sectorSize, codec, compressed);
+        DeviceRegistry.get(level).put(device);
+        AllocationMap.get(level).track(level, device);
+        var chunkCache = CHUNK_CACHES.get(ctx.getSource().getServer());
+        if (chunkCache != null) {
+            // a device made here before may have been read with another codec
+            chunkCache.invalidate(level, device);
+        }
+        var writeScheduler = WRITE_SCHEDULERS.get(ctx.getSource().getServer());
+        if (compressed && chunkCache != null && writeScheduler != null) {
+            getStore(level, device, chunkCache, writeScheduler, AllocationMap.get(level));
+        }
+        var residency = RESIDENCIES.get(ctx.getSource().getServer());
+        if (residency != null) {
+            residency.pinDevice(level, device);
+        }
+        ctx.getSource().sendSuccess(Component.literal("Created device %s: %s bytes over %s chunks of %s bytes".formatted(
+                name, length, device.chunkCount(level), device.bytesPerChunk(level))), true);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static void setPropertyIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Makes the executor that HTTP exchanges are handled on. With {@code threads <= 0}, each exchange gets its own
+     * virtual thread when the JVM supports them (JDK 21+), and otherwise a pool sized to the machine is used.
+     */
+    private static ExecutorService createHttpExecutor(int threads) {
+        if (threads <= 0) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.info("Virtual threads aren't available, using a thread pool for HTTP requests");
+                threads = defaultPoolSize();
+            }
+        }
+
+        var threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "CraftTTP HTTP #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return how many threads a pool for blocking request handlers gets when the config doesn't say
+     */
+    static int defaultPoolSize() {
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Handles {@code /read_range}: checks the request, then has {@code reader} read the range and sends it back.
+     * {@code devices} looks devices up by name, returning null for unknown ones. Kept apart from the world so the
+     * benchmarks can serve the real handler from a synthetic chunk.
+     */
+    static HttpHandler readRangeHandler(Function<String, BlockDevice> devices, Metrics metrics, RangeReader reader) {
+        return httpExchange -> {
+            if (!verifyHttpMethod(httpExchange, "GET")) {
+                LOGGER.warn("Rejecting {} because incorrect method {}", httpExchange.getRequestURI(), httpExchange.getRequestMethod());
+                return;
+            }
+
+            Map<String, String> queryParams = getQueryParams(httpExchange.getRequestURI().getRawQuery());
+            @Nullable Long offset = getLongFromQueryString(httpExchange, queryParams, "offset", 0);
+            if (offset == null) {
+                LOGGER.warn("Rejecting {} because invalid offset", httpExchange.getRequestURI());
+                return;
+            }
+            if (offset < 0) {
+                LOGGER.warn("Rejecting {} because negative offset ({})", httpExchange.getRequestURI(), offset);
+                httpExchange.sendResponseHeaders(400, -1);
+                httpExchange.getResponseBody().close();
+                return;
+            }
+
+            @Nullable BlockDevice device = getDeviceFromQueryString(httpExchange, queryParams, devices);
+            if (device == null) {
+                LOGGER.warn("Rejecting {} because unknown device", httpExchange.getRequestURI());
+                return;
+            }
+
+            @Nullable Integer length = getIntegerFromQueryString(httpExchange, queryParams, "length", -1);
+            if (length == null) {
+                LOGGER.warn("Rejecting {} because invalid length", httpExchange.getRequestURI());
+                return;
+            }
+            if (length < 0 || length > MAX_RANGE_LENGTH) {
+                LOGGER.warn("Rejecting {} because length {} is outside [0, {}]", httpExchange.getRequestURI(), length, MAX_RANGE_LENGTH);
+                httpExchange.sendResponseHeaders(400, -1);
+                httpExchange.getResponseBody().close();
+                return;
+            }
+            if (offset + length > device.length()) {
+                LOGGER.warn("Rejecting {} because it runs past the end of device {}", httpExchange.getRequestURI(), device.name());
+                httpExchange.sendResponseHeaders(400, -1);
+                httpExchange.getResponseBody().close();
+                return;
+            }
+
+            LOGGER.debug("Request to read {} bytes of data @ {} offset {}", length, device.name(), offset);
+            byte[] contents = reader.read(device, offset, length);
+            metrics.recordRead(contents.length);
+            respondOk(httpExchange, contents);
+        };
+    }
+
+    /**
+     * Wraps a handler so that how long it takes is recorded, both in the metrics and as a flight recorder event.
+     */
+    private static HttpHandler timed(Metrics metrics, String endpoint, HttpHandler handler) {
+        return httpExchange -> {
+            var event = new IoEvents.Request();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                handler.handle(httpExchange);
+            } finally {
+                metrics.recordRequest(endpoint, System.nanoTime() - start);
+                event.endpoint = endpoint;
+                event.commit();
+            }
+        };
+    }
+
+    /**
+     * Runs a task on the server thread, recording how long it waited to be picked up.
+     */
+    static <T> CompletableFuture<T> submit(MinecraftServer server, Metrics metrics, Supplier<T> task) {
+        var event = new IoEvents.MainThreadWait();
+        event.begin();
+        long submitted = System.nanoTime();
+        return server.submit(() -> {
+            metrics.recordMainThreadWait(System.nanoTime() - submitted);
+            event.commit();
+            return task.get();
+        });
+    }
+
+    static Map<String, String> getQueryParams(@Nullable String rawQueryString) {
         if (rawQueryString == null || rawQueryString.isEmpty()) {
             return Map.of();
         }
@@ -360,6 +1098,59 @@ public class CraftTTP implements ModInitializer {
         return value;
     }
 
+    private static @Nullable Long getLongFromQueryString(HttpExchange httpExchange, Map<String, String> queryParams, String key, long defaultValue) throws IOException {
+        if (!queryParams.containsKey(key)) {
+            return defaultValue;
+        }
+
+        long value;
+        try {
+            value = Long.parseLong(queryParams.get(key));
+        } catch (NumberFormatException e) {
+            httpExchange.sendResponseHeaders(400, -1);
+            httpExchange.getResponseBody().close();
+            return null;
+        }
+
+        return value;
+    }
+
+    private static @Nullable BlockDevice getDeviceFromQueryString(HttpExchange httpExchange, Map<String, String> queryParams, DeviceRegistry devices) throws IOException {
+        return getDeviceFromQueryString(httpExchange, queryParams, devices::get);
+    }
+
+    private static @Nullable BlockDevice getDeviceFromQueryString(HttpExchange httpExchange, Map<String, String> queryParams, Function<String, BlockDevice> devices) throws IOException {
+        @Nullable BlockDevice device = devices.apply(queryParams.getOrDefault("device", DeviceRegistry.DEFAULT_DEVICE));
+        if (device == null) {
+            httpExchange.sendResponseHeaders(404, -1);
+            httpExchange.getResponseBody().close();
+        }
+
+        return device;
+    }
+
+    private static @Nullable WriteMode getWriteModeFromQueryString(HttpExchange httpExchange, Map<String, String> queryParams) throws IOException {
+        if (!queryParams.containsKey("mode")) {
+            return config.defaultWriteMode();
+        }
+
+        @Nullable WriteMode mode = WriteMode.byName(queryParams.get("mode"));
+        if (mode == null) {
+            httpExchange.sendResponseHeaders(400, -1);
+            httpExchange.getResponseBody().close();
+        }
+
+        return mode;
+    }
+
+    private static void respondOk(HttpExchange httpExchange, byte[] response) throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        httpExchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+        try (var os = httpExchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
     private static void respondOk(HttpExchange httpExchange, String response) throws IOException {
         httpExchange.sendResponseHeaders(200, response.length());
         try (var os = httpExchange.getResponseBody()) {
@@ -367,77 +1158,357 @@ public class CraftTTP implements ModInitializer {
         }
     }
 
-    private static byte[] readChunk(ServerLevel level, ChunkPos chunkPos, int offset, int length) {
-        LevelChunk chunk = level.getChunk(chunkPos.x, chunkPos.z);
-        int minY = level.getMinBuildHeight()+1;
-        int maxY = level.getMaxBuildHeight();
-        LevelChunkSection[] sections = chunk.getSections();
+    private static JsonObject getDeviceInfo(ServerLevel level, DeviceRegistry devices, BlockDevice device) {
+        var origin = new JsonObject();
+        origin.addProperty("x", device.origin().x);
+        origin.addProperty("z", device.origin().z);
+        var info = new JsonObject();
+        info.addProperty("name", device.name());
+        info.addProperty("size", device.length());
+        info.addProperty("bytes_per_chunk", device.bytesPerChunk(level));
+        info.addProperty("chunk_capacity", device.codec().capacity(level));
+        info.addProperty("codec", device.codec().name());
+        info.addProperty("sector_size", device.sectorSize());
+        info.addProperty("chunk_count", device.chunkCount(level));
+        info.add("origin", origin);
+        info.addProperty("width", device.width());
+        info.addProperty("order", "row-major");
+        info.addProperty("compressed", device.compressed());
+        @Nullable CompressedStore store = devices.store(device.name());
+        if (store != null) {
+            info.addProperty("physical_size", device.physicalLength());
+            info.addProperty("stored_bytes", store.storedBytes());
+            info.addProperty("free_bytes", store.freeBytes());
+        }
+        return info;
+    }
+
+    /**
+     * @return the chunks holding a range of a device. Compressed devices' sectors can be anywhere, but they are only
+     * read and written on the server thread, so there's nothing to lock or load ahead and this is empty.
+     */
+    static List<ChunkPos> getChunksForRange(ServerLevel level, BlockDevice device, long offset, long length) {
+        List<ChunkPos> chunks = new ArrayList<>();
+        if (device.compressed()) {
+            return chunks;
+        }
+        int bytesPerChunk = device.bytesPerChunk(level);
+        for (long i = offset / bytesPerChunk; length > 0 && i <= (offset + length - 1) / bytesPerChunk; i++) {
+            chunks.add(device.chunkPos(i));
+        }
+        return chunks;
+    }
+
+    /**
+     * Called from the server thread once every dirty chunk has been handed off to be saved. The journal is only
+     * checkpointed once those chunks are on disk: straight away if the save was a flushing one, and otherwise once the
+     * overworld's chunk storage has written them out.
+     */
+    public static void onChunksSaved(MinecraftServer server, boolean flush) {
+        var writeScheduler = WRITE_SCHEDULERS.get(server);
+        @Nullable WriteScheduler.Checkpoint checkpoint = writeScheduler == null ? null : writeScheduler.beginCheckpoint();
+        if (checkpoint == null) {
+            return;
+        }
+
+        CompletableFuture<Void> saved = flush
+                ? CompletableFuture.completedFuture(null)
+                : server.overworld().getChunkSource().chunkMap.worker.synchronize(true);
+        saved.thenRun(() -> {
+            try {
+                writeScheduler.completeCheckpoint(checkpoint);
+            } catch (IOException e) {
+                LOGGER.error("Failed to checkpoint the write journal, keeping every record: {}", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Called from the server thread whenever a block which some {@link CellCodec} reads changes in the overworld.
+     */
+    public static void onMemoryCellChanged(ServerLevel level, BlockPos pos, BlockState state) {
+        var chunkCache = CHUNK_CACHES.get(level.getServer());
+        if (chunkCache != null) {
+            chunkCache.onBlockChanged(level, pos, state);
+        }
+    }
+
+    /**
+     * Tries to read a range of a device from the chunk cache and the allocation map alone, so that it can be answered
+     * from any thread. Compressed devices are always read on the server thread.
+     *
+     * @return the contents of the range, or null if any allocated part of it isn't cached
+     */
+    static @Nullable byte[] readRangeFromCache(ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation, long offset, int length) {
+        if (device.compressed()) {
+            return null;
+        }
+
         byte[] results = new byte[length];
-        int i = 0;
-        for (int y = minY; y < maxY; y++) {
-            @Nullable LevelChunkSection section = sections[level.getSectionIndex(y)];
-
-            for (int z = 0; z < 16; z += 4) {
-                for (int byteIndex = 0; byteIndex < 2; byteIndex++) {
-                    if (offset > 0) {
-                        offset--;
-                        continue;
-                    }
-                    if (i >= results.length) {
-                        return results;
-                    }
-
-                    byte result = 0x0;
-                    if (section != null) {
-                        for (int x = 0; x < 8; x++) {
-                            BlockState state = section.getBlockState(x + byteIndex * 8, y & 15, z);
-                            byte bit = (byte) (state.hasProperty(BlockStateProperties.LIT) ? state.getValue(BlockStateProperties.LIT) ? 1 : 0 : 0);
-                            result = (byte) (result | (bit << x));
-                        }
-                    }
-                    results[i++] = result;
-                }
+        boolean hit = device.forEachChunk(level, offset, length, (pos, offsetInChunk, done, lengthInChunk) -> {
+            // nothing in this part of the chunk has been written, so it's all zeroes
+            if (!allocation.isAllocated(pos, offsetInChunk, lengthInChunk)) {
+                return true;
+            }
+            if (!chunkCache.read(pos, offsetInChunk, results, done, lengthInChunk)) {
+                return false;
             }
+            writeScheduler.overlay(pos, offsetInChunk, results, done, lengthInChunk);
+            return true;
+        });
+
+        return hit ? results : null;
+    }
+
+    /**
+     * Reads a range of a device. All chunks touched by the range are read in this one call, so it should be run as a
+     * single main-thread task. Writes which are still queued on the write scheduler are layered over what is in the
+     * world, and parts of chunks which are unallocated read as zeroes without being decoded.
+     */
+    static byte[] readRange(ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation, long offset, int length) {
+        if (device.compressed()) {
+            return getStore(level, device, chunkCache, writeScheduler, allocation)
+                    .read(rawIo(level, device, chunkCache, writeScheduler, allocation, WriteMode.BULK), offset, length);
         }
+        return readRawRange(level, device, chunkCache, writeScheduler, allocation, offset, length);
+    }
+
+    private static byte[] readRawRange(ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation, long offset, int length) {
+        byte[] results = new byte[length];
+        device.forEachChunk(level, offset, length, (pos, offsetInChunk, done, lengthInChunk) -> {
+            if (!allocation.isAllocated(pos, offsetInChunk, lengthInChunk)) {
+                return true;
+            }
+            byte[] chunkContents = readChunkCached(level, chunkCache, device.codec(), pos, offsetInChunk, lengthInChunk);
+            System.arraycopy(chunkContents, 0, results, done, lengthInChunk);
+            writeScheduler.overlay(pos, offsetInChunk, results, done, lengthInChunk);
+            return true;
+        });
 
         return results;
     }
 
-    private static void writeChunk(ServerLevel level, ChunkPos chunkPos, int offset, byte[] toWrite) {
-        LevelChunk chunk = level.getChunk(chunkPos.x, chunkPos.z);
-        int minY = level.getMinBuildHeight()+1;
-        int maxY = level.getMaxBuildHeight();
-        LevelChunkSection[] sections = chunk.getSections();
-        int i = 0;
-        for (int y = minY; y < maxY; y++) {
-            @Nullable LevelChunkSection section = sections[level.getSectionIndex(y)];
-
-            for (int z = 2; z < 16; z += 4) {
-                for (int byteIndex = 0; byteIndex < 2; byteIndex++) {
-                    if (i >= toWrite.length) {
-                        return;
-                    }
-                    if (offset > 0) {
-                        offset--;
-                        continue;
-                    }
-                    byte byteToWrite = toWrite[i++];
-                    for (int x = 0; x < 8; x++) {
-                        BlockState state = section == null ? Blocks.AIR.defaultBlockState() : section.getBlockState(x + byteIndex * 8, y & 15, z);
-                        if (state.hasProperty(BlockStateProperties.POWERED) && state.hasProperty(BlockStateProperties.ATTACH_FACE)) {
-                            boolean isBitOn = ((byteToWrite >> x) & 1) != 0;
-                            // we don't set it straight to the section because we want block updates from redstone + clicky sounds :)
-                            if (isBitOn == state.getValue(BlockStateProperties.POWERED)) {
-                                var pos = new BlockPos(chunkPos.getMinBlockX() + x + byteIndex * 8, y, chunkPos.getMinBlockZ() + z);
-                                var result = ((LeverBlock)Blocks.LEVER).pull(state, level, pos);
-                                float f = result.getValue(BlockStateProperties.POWERED) ? 0.6F : 0.5F;
-                                level.playSound(null, pos, SoundEvents.LEVER_CLICK, SoundSource.BLOCKS, 0.3F, f);
-                                level.gameEvent(null, result.getValue(BlockStateProperties.POWERED) ? GameEvent.BLOCK_ACTIVATE : GameEvent.BLOCK_DEACTIVATE, pos);
-                            }
+    /**
+     * Queues a write to a range of a device on the write scheduler. Writes to compressed devices are compressed on the
+     * server thread, since the slots they go in have to be read back to code them; everything else is queued straight
+     * away.
+     *
+     * @return a future which completes once the write is queued, or fails with a
+     * {@link CompressedStore.DeviceFullException} if a compressed device has no room for it, or an
+     * {@link UncheckedIOException} if it couldn't be journaled
+     */
+    static CompletableFuture<Void> writeRange(Metrics metrics, ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation, long offset, byte[] toWrite, WriteMode mode) {
+        if (device.compressed()) {
+            return submit(level.getServer(), metrics, () -> {
+                getStore(level, device, chunkCache, writeScheduler, allocation)
+                        .write(rawIo(level, device, chunkCache, writeScheduler, allocation, mode), offset, toWrite);
+                return null;
+            });
+        }
+
+        try {
+            writeRawRange(level, device, writeScheduler, allocation, offset, toWrite, mode);
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @throws UncheckedIOException if a write couldn't be journaled. Chunks before it will already have been queued.
+     */
+    private static void writeRawRange(ServerLevel level, BlockDevice device, WriteScheduler writeScheduler, AllocationMap allocation, long offset, byte[] toWrite, WriteMode mode) {
+        device.forEachChunk(level, offset, toWrite.length, (pos, offsetInChunk, done, lengthInChunk) -> {
+            try {
+                enqueueChunkWrite(writeScheduler, allocation, pos, device.codec(), offsetInChunk, Arrays.copyOfRange(toWrite, done, done + lengthInChunk), mode);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Queues a write to one chunk. With an allocation map, the units it touches are marked allocated first, and the
+     * rest of any unit which wasn't already is queued to be zeroed along with it.
+     *
+     * @throws IOException if a write couldn't be journaled
+     */
+    private static void enqueueChunkWrite(WriteScheduler writeScheduler, @Nullable AllocationMap allocation, ChunkPos pos, CellCodec codec, int offset, byte[] data, WriteMode mode) throws IOException {
+        if (allocation != null) {
+            for (AllocationMap.Run padding : allocation.allocate(pos, offset, data.length)) {
+                writeScheduler.enqueue(pos, codec, padding.offset(), new byte[padding.length()], mode);
+            }
+        }
+        writeScheduler.enqueue(pos, codec, offset, data, mode);
+    }
+
+    /**
+     * Zeroes a range of a device. Units wholly inside the range are marked unallocated, so they read as zeroes straight
+     * away, and only the parts which had been written are queued to be reset in the world, in bulk. Compressed devices
+     * drop whole sectors from their sector map instead, on the server thread.
+     */
+    static CompletableFuture<Void> zeroRange(Metrics metrics, ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation, long offset, long length) {
+        if (device.compressed()) {
+            return submit(level.getServer(), metrics, () -> {
+                getStore(level, device, chunkCache, writeScheduler, allocation)
+                        .zero(rawIo(level, device, chunkCache, writeScheduler, allocation, WriteMode.BULK), offset, length);
+                return null;
+            });
+        }
+
+        int bytesPerChunk = device.bytesPerChunk(level);
+        long[] reset = {0};
+        long done = 0;
+        while (done < length) {
+            int part = (int) Math.min(length - done, MAX_RANGE_LENGTH);
+            try {
+                device.forEachChunk(level, offset + done, part, (pos, offsetInChunk, partDone, lengthInChunk) -> {
+                    for (AllocationMap.Run run : allocation.zero(pos, offsetInChunk, lengthInChunk, bytesPerChunk)) {
+                        try {
+                            writeScheduler.enqueue(pos, device.codec(), run.offset(), new byte[run.length()], WriteMode.BULK);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
                         }
+                        reset[0] += run.length();
+                    }
+                    return true;
+                });
+            } catch (UncheckedIOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            done += part;
+        }
+        LOGGER.debug("Zeroing {} bytes @ {} offset {} queued {} bytes to be reset", length, device.name(), offset, reset[0]);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Splits a range of a device into extents which are either all allocated or all zeroes, merging neighbours.
+     */
+    static List<Extent> getExtents(ServerLevel level, DeviceRegistry devices, BlockDevice device, AllocationMap allocation, long offset, long length) {
+        if (device.compressed()) {
+            @Nullable CompressedStore store = devices.store(device.name());
+            return store == null ? List.of(new Extent(offset, length, true)) : store.extents(offset, length);
+        }
+
+        List<Extent> extents = new ArrayList<>();
+        long done = 0;
+        while (done < length) {
+            int part = (int) Math.min(length - done, MAX_RANGE_LENGTH);
+            long partOffset = offset + done;
+            device.forEachChunk(level, partOffset, part, (pos, offsetInChunk, partDone, lengthInChunk) -> {
+                for (AllocationMap.Run run : allocation.runs(pos, offsetInChunk, lengthInChunk)) {
+                    long start = partOffset + partDone + run.offset() - offsetInChunk;
+                    @Nullable Extent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+                    if (last != null && last.allocated() == run.allocated() && last.offset() + last.length() == start) {
+                        extents.set(extents.size() - 1, new Extent(last.offset(), last.length() + run.length(), last.allocated()));
+                    } else {
+                        extents.add(new Extent(start, run.length(), run.allocated()));
                     }
                 }
+                return true;
+            });
+            done += part;
+        }
+        return extents;
+    }
+
+    /**
+     * @return a compressed device's store, reading its sector map from the world if it hasn't been yet. Must be called
+     * on the server thread.
+     */
+    static CompressedStore getStore(ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation) {
+        DeviceRegistry devices = DeviceRegistry.get(level);
+        @Nullable CompressedStore store = devices.store(device.name());
+        if (store == null) {
+            store = CompressedStore.load(device, rawIo(level, device, chunkCache, writeScheduler, allocation, WriteMode.BULK));
+            devices.putStore(device.name(), store);
+        }
+        return store;
+    }
+
+    private static CompressedStore.RawIo rawIo(ServerLevel level, BlockDevice device, ChunkByteCache chunkCache, WriteScheduler writeScheduler, AllocationMap allocation, WriteMode mode) {
+        return new CompressedStore.RawIo() {
+            @Override
+            public byte[] read(long offset, int length) {
+                return readRawRange(level, device, chunkCache, writeScheduler, allocation, offset, length);
+            }
+
+            @Override
+            public void write(long offset, byte[] data) {
+                writeRawRange(level, device, writeScheduler, allocation, offset, data, mode);
             }
+        };
+    }
+
+    record Extent(long offset, long length, boolean allocated) {
+    }
+
+    /**
+     * Reads a range of a device which has already been checked to lie within it.
+     */
+    @FunctionalInterface
+    interface RangeReader {
+        byte[] read(BlockDevice device, long offset, int length);
+    }
+
+    /**
+     * Reads part of a chunk through the chunk cache. On a miss the whole chunk is decoded and cached. Must be called on
+     * the server thread.
+     */
+    private static byte[] readChunkCached(ServerLevel level, ChunkByteCache chunkCache, CellCodec codec, ChunkPos chunkPos, int offset, int length) {
+        byte[] results = new byte[length];
+        if (chunkCache.read(chunkPos, offset, results, 0, length)) {
+            return results;
+        }
+
+        byte[] contents = readChunk(level, codec, chunkPos, 0, codec.capacity(level));
+        chunkCache.put(chunkPos, codec, contents);
+        if (offset < 0 || offset + length > contents.length) {
+            return readChunk(level, codec, chunkPos, offset, length);
+        }
+
+        System.arraycopy(contents, offset, results, 0, length);
+        return results;
+    }
+
+    private static byte[] readChunk(ServerLevel level, CellCodec codec, ChunkPos chunkPos, int offset, int length) {
+        var event = new IoEvents.ChunkRead();
+        event.begin();
+        long start = System.nanoTime();
+        byte[] results = new byte[length];
+        codec.read(level.getChunk(chunkPos.x, chunkPos.z), offset, results, 0, length);
+
+        var metrics = METRICS.get(level.getServer());
+        if (metrics != null) {
+            metrics.recordChunkRead(System.nanoTime() - start);
+        }
+        event.x = chunkPos.x;
+        event.z = chunkPos.z;
+        event.length = length;
+        event.commit();
+        return results;
+    }
+
+    /**
+     * @return the number of blocks that were changed
+     */
+    static int writeChunk(ServerLevel level, CellCodec codec, ChunkPos chunkPos, int offset, byte[] toWrite, WriteMode mode) {
+        var event = new IoEvents.ChunkWrite();
+        event.begin();
+        long start = System.nanoTime();
+        int changes = codec.write(level, level.getChunk(chunkPos.x, chunkPos.z), offset, toWrite, mode);
+
+        var metrics = METRICS.get(level.getServer());
+        if (metrics != null) {
+            metrics.recordChunkWrite(System.nanoTime() - start, changes);
         }
+        event.x = chunkPos.x;
+        event.z = chunkPos.z;
+        event.length = toWrite.length;
+        event.changes = changes;
+        event.commit();
+        return changes;
     }
 }
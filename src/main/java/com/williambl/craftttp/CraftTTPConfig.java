@@ -0,0 +1,97 @@
+package com.williambl.craftttp;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static com.williambl.craftttp.CraftTTP.LOGGER;
+
+/**
+ * Settings read from {@code config/craftttp.properties}. Missing keys fall back to their defaults, and the file is
+ * written out with every default the first time the mod starts.
+ */
+public record CraftTTPConfig(
+        int httpPort,
+        int nbdPort,
+        long writeBudgetNanos,
+        int writeBudgetFlips,
+        WriteMode defaultWriteMode,
+        long cacheMaxBytes,
+        int httpThreads,
+        int httpIdleSeconds,
+        int httpMaxIdleConnections,
+        int lockStripes,
+        long provisionBudgetNanos,
+        int residentChunks,
+        int readAheadChunks,
+        boolean journal
+) {
+    public static CraftTTPConfig load() {
+        Path path = FabricLoader.getInstance().getConfigDir().resolve("craftttp.properties");
+        Properties properties = new Properties();
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                LOGGER.error("Failed to read {}, using defaults: {}", path, e.getMessage());
+            }
+        }
+
+        var config = new CraftTTPConfig(
+                getInt(properties, "http_port", 8394),
+                getInt(properties, "nbd_port", 10809),
+                getInt(properties, "write_budget_micros", 10_000) * 1000L,
+                getInt(properties, "write_budget_flips", 4096),
+                getBoolean(properties, "bulk_writes", false) ? WriteMode.BULK : WriteMode.CLICKY,
+                getInt(properties, "cache_max_kib", 64 * 1024) * 1024L,
+                getInt(properties, "http_threads", 0),
+                getInt(properties, "http_idle_seconds", 30),
+                getInt(properties, "http_max_idle_connections", 200),
+                getInt(properties, "lock_stripes", 64),
+                getInt(properties, "provision_budget_micros", 5_000) * 1000L,
+                getInt(properties, "resident_chunks", 1024),
+                getInt(properties, "read_ahead_chunks", 8),
+                getBoolean(properties, "journal", true)
+        );
+
+        if (!Files.exists(path)) {
+            try (Writer writer = Files.newBufferedWriter(path)) {
+                properties.store(writer, "CraftTTP settings");
+            } catch (IOException e) {
+                LOGGER.warn("Failed to write default config to {}: {}", path, e.getMessage());
+            }
+        }
+
+        return config;
+    }
+
+    private static boolean getBoolean(Properties properties, String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            properties.setProperty(key, Boolean.toString(defaultValue));
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private static int getInt(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            properties.setProperty(key, Integer.toString(defaultValue));
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Ignoring invalid value {} for {}", value, key);
+            return defaultValue;
+        }
+    }
+}
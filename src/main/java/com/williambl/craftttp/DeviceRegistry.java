@@ -0,0 +1,111 @@
+package com.williambl.craftttp;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.saveddata.SavedData;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The block devices registered in a world, saved alongside it.
+ * <p>
+ * A new world starts with a {@value #DEFAULT_DEVICE} device laid out the same way craftnbd always has: 64 KiB over
+ * rows of ten chunks from chunk (0, 0).
+ */
+public class DeviceRegistry extends SavedData {
+    public static final String DEFAULT_DEVICE = "default";
+    private static final String ID = "craftttp_devices";
+
+    private final Map<String, BlockDevice> devices = new ConcurrentSkipListMap<>();
+    // the in-memory sector maps of compressed devices, which aren't saved here since they live in the devices' chunks
+    private final Map<String, CompressedStore> stores = new ConcurrentHashMap<>();
+
+    public static DeviceRegistry get(ServerLevel level) {
+        return level.getDataStorage().computeIfAbsent(DeviceRegistry::load, DeviceRegistry::create, ID);
+    }
+
+    private static DeviceRegistry create() {
+        var registry = new DeviceRegistry();
+        registry.put(new BlockDevice(DEFAULT_DEVICE, new ChunkPos(0, 0), 10, 65536, 0, CellCodecs.TORCH_LEVER, false));
+        return registry;
+    }
+
+    private static DeviceRegistry load(CompoundTag tag) {
+        var registry = new DeviceRegistry();
+        for (Tag deviceTag : tag.getList("devices", Tag.TAG_COMPOUND)) {
+            var device = BlockDevice.load((CompoundTag) deviceTag);
+            registry.devices.put(device.name(), device);
+        }
+        return registry;
+    }
+
+    public @Nullable BlockDevice get(String name) {
+        return this.devices.get(name);
+    }
+
+    /**
+     * @return the first device holding bytes in the chunk at {@code pos}, or null if none does
+     */
+    public @Nullable BlockDevice deviceAt(LevelHeightAccessor level, ChunkPos pos) {
+        for (BlockDevice device : this.devices.values()) {
+            if (device.contains(level, pos)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the codec of the first device holding bytes in the chunk at {@code pos}, or the torch/lever codec if none
+     * does
+     */
+    public CellCodec codecAt(LevelHeightAccessor level, ChunkPos pos) {
+        @Nullable BlockDevice device = this.deviceAt(level, pos);
+        return device == null ? CellCodecs.TORCH_LEVER : device.codec();
+    }
+
+    public Collection<BlockDevice> all() {
+        return this.devices.values();
+    }
+
+    public @Nullable CompressedStore store(String name) {
+        return this.stores.get(name);
+    }
+
+    public void putStore(String name, CompressedStore store) {
+        this.stores.put(name, store);
+    }
+
+    public void put(BlockDevice device) {
+        this.devices.put(device.name(), device);
+        this.stores.remove(device.name());
+        this.setDirty();
+    }
+
+    public boolean remove(String name) {
+        this.stores.remove(name);
+        boolean removed = this.devices.remove(name) != null;
+        if (removed) {
+            this.setDirty();
+        }
+        return removed;
+    }
+
+    @Override
+    public CompoundTag save(CompoundTag tag) {
+        var list = new ListTag();
+        for (BlockDevice device : this.devices.values()) {
+            list.add(device.save());
+        }
+        tag.put("devices", list);
+        return tag;
+    }
+}
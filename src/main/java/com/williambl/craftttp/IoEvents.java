@@ -0,0 +1,61 @@
+package com.williambl.craftttp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events for the block device I/O path, so that slow requests can be lined up with server ticks and
+ * chunk loading in a recording.
+ */
+final class IoEvents {
+    private IoEvents() {
+    }
+
+    @Name("craftttp.Request")
+    @Label("Block Device Request")
+    @Category("CraftTTP")
+    @Description("An HTTP or NBD request, from being read to being answered")
+    static final class Request extends Event {
+        @Label("Endpoint")
+        String endpoint;
+    }
+
+    @Name("craftttp.MainThreadWait")
+    @Label("Main Thread Wait")
+    @Category("CraftTTP")
+    @Description("A task submitted to the server thread, from being submitted to starting to run")
+    static final class MainThreadWait extends Event {
+    }
+
+    @Name("craftttp.ChunkRead")
+    @Label("Chunk Read")
+    @Category("CraftTTP")
+    static final class ChunkRead extends Event {
+        @Label("Chunk X")
+        int x;
+        @Label("Chunk Z")
+        int z;
+        @Label("Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("craftttp.ChunkWrite")
+    @Label("Chunk Write")
+    @Category("CraftTTP")
+    static final class ChunkWrite extends Event {
+        @Label("Chunk X")
+        int x;
+        @Label("Chunk Z")
+        int z;
+        @Label("Length")
+        @DataAmount
+        int length;
+        @Label("Blocks Changed")
+        int changes;
+    }
+}
@@ -0,0 +1,149 @@
+package com.williambl.craftttp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the block device I/O path, rendered in the Prometheus text format by
+ * {@code /metrics}.
+ */
+public class Metrics {
+    private static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final Map<String, Histogram> requests = new ConcurrentHashMap<>();
+    private final Histogram mainThreadWait = new Histogram();
+    private final Histogram tickChunkReads = new Histogram();
+    private final Histogram tickChunkWrites = new Histogram();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder cellChanges = new LongAdder();
+    private final LongAdder chunkReadNanos = new LongAdder();
+    private final LongAdder chunkWriteNanos = new LongAdder();
+    // only touched on the server thread
+    private long tickReadNanos;
+    private long tickWriteNanos;
+
+    public void recordRequest(String endpoint, long nanos) {
+        this.requests.computeIfAbsent(endpoint, e -> new Histogram()).observe(nanos);
+    }
+
+    public void recordMainThreadWait(long nanos) {
+        this.mainThreadWait.observe(nanos);
+    }
+
+    public void recordRead(long bytes) {
+        this.bytesRead.add(bytes);
+    }
+
+    public void recordWrite(long bytes) {
+        this.bytesWritten.add(bytes);
+    }
+
+    /**
+     * Must be called on the server thread.
+     */
+    public void recordChunkRead(long nanos) {
+        this.chunkReadNanos.add(nanos);
+        this.tickReadNanos += nanos;
+    }
+
+    /**
+     * Must be called on the server thread.
+     */
+    public void recordChunkWrite(long nanos, int changes) {
+        this.chunkWriteNanos.add(nanos);
+        this.tickWriteNanos += nanos;
+        this.cellChanges.add(changes);
+    }
+
+    /**
+     * Records how long this tick spent reading and writing chunks. Must be called on the server thread, at the end of
+     * every tick.
+     */
+    public void endTick() {
+        this.tickChunkReads.observe(this.tickReadNanos);
+        this.tickChunkWrites.observe(this.tickWriteNanos);
+        this.tickReadNanos = 0;
+        this.tickWriteNanos = 0;
+    }
+
+    public String render(WriteScheduler writeScheduler, ChunkByteCache chunkCache) {
+        var out = new StringBuilder();
+        header(out, "craftttp_request_duration_seconds", "histogram", "Time from a request being read to it being answered.");
+        for (var entry : this.requests.entrySet()) {
+            entry.getValue().render(out, "craftttp_request_duration_seconds", "endpoint=\"" + entry.getKey() + "\"");
+        }
+        header(out, "craftttp_main_thread_wait_seconds", "histogram", "Time tasks wait for the server thread to pick them up.");
+        this.mainThreadWait.render(out, "craftttp_main_thread_wait_seconds", "");
+        header(out, "craftttp_tick_chunk_io_seconds", "histogram", "Time each tick spends reading and writing memory chunks.");
+        this.tickChunkReads.render(out, "craftttp_tick_chunk_io_seconds", "op=\"read\"");
+        this.tickChunkWrites.render(out, "craftttp_tick_chunk_io_seconds", "op=\"write\"");
+        header(out, "craftttp_chunk_io_seconds_total", "counter", "Total time spent reading and writing memory chunks.");
+        out.append("craftttp_chunk_io_seconds_total{op=\"read\"} ").append(this.chunkReadNanos.sum() / 1e9).append('\n');
+        out.append("craftttp_chunk_io_seconds_total{op=\"write\"} ").append(this.chunkWriteNanos.sum() / 1e9).append('\n');
+        counter(out, "craftttp_read_bytes_total", "Bytes read from devices.", this.bytesRead.sum());
+        counter(out, "craftttp_written_bytes_total", "Bytes written to devices.", this.bytesWritten.sum());
+        counter(out, "craftttp_cell_changes_total", "Memory cell blocks changed, e.g. levers flipped.", this.cellChanges.sum());
+        counter(out, "craftttp_cache_hits_total", "Chunk cache reads which were answered from the cache.", chunkCache.hits());
+        counter(out, "craftttp_cache_misses_total", "Chunk cache reads which had to go to the world.", chunkCache.misses());
+        gauge(out, "craftttp_cache_bytes", "Bytes of decoded chunks in the cache.", chunkCache.bytes());
+        gauge(out, "craftttp_write_queue_chunks", "Chunks with queued writes.", writeScheduler.queuedChunks());
+        gauge(out, "craftttp_write_queue_bytes", "Bytes of queued writes.", writeScheduler.queuedBytes());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    this.buckets[i].increment();
+                    break;
+                }
+            }
+            this.count.increment();
+            this.sum.add(seconds);
+        }
+
+        private void render(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += this.buckets[i].sum();
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            long count = this.count.sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(suffix).append(' ').append(this.sum.sum()).append('\n');
+            out.append(name).append("_count").append(suffix).append(' ').append(count).append('\n');
+        }
+    }
+}
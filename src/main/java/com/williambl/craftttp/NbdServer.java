@@ -0,0 +1,715 @@
+package com.williambl.craftttp;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.williambl.craftttp.CraftTTP.LOGGER;
+
+/**
+ * A non-blocking server for the NBD fixed newstyle protocol, so that {@code nbd-client} can talk to the mod directly.
+ * <p>
+ * Each command is handed to the Minecraft server thread or the {@link WriteScheduler} as soon as it has been read, and
+ * its reply is sent as soon as it completes, so many commands can be in flight at once and replies may go out of order.
+ * Reads, writes and zeroes take the same {@link ChunkLocks} as the HTTP endpoints, on a fixed pool of worker threads
+ * so that the selector never blocks, which is what makes it safe to advertise multi-conn. Syncs to disk for flushes
+ * and forced unit access writes run on the same pool.
+ * <p>
+ * Clients which negotiate structured replies can also select the {@value #ALLOCATION_CONTEXT} metadata context, and
+ * then ask which parts of the device are holes with block status commands.
+ */
+public class NbdServer {
+    private static final long NBDMAGIC = 0x4e42444d41474943L;
+    private static final long IHAVEOPT = 0x49484156454f5054L;
+    private static final long OPTION_REPLY_MAGIC = 0x3e889045565a9L;
+    private static final int REQUEST_MAGIC = 0x25609513;
+    private static final int SIMPLE_REPLY_MAGIC = 0x67446698;
+    private static final int STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+
+    private static final short FLAG_FIXED_NEWSTYLE = 1 << 0;
+    private static final short FLAG_NO_ZEROES = 1 << 1;
+    private static final int CLIENT_FLAG_NO_ZEROES = 1 << 1;
+
+    private static final short TRANSMISSION_FLAGS = (short) (
+            (1 << 0)   // NBD_FLAG_HAS_FLAGS
+            | (1 << 2) // NBD_FLAG_SEND_FLUSH
+            | (1 << 3) // NBD_FLAG_SEND_FUA
+            | (1 << 5) // NBD_FLAG_SEND_TRIM
+            | (1 << 6) // NBD_FLAG_SEND_WRITE_ZEROES
+            | (1 << 8) // NBD_FLAG_CAN_MULTI_CONN
+    );
+
+    private static final int OPT_EXPORT_NAME = 1;
+    private static final int OPT_ABORT = 2;
+    private static final int OPT_LIST = 3;
+    private static final int OPT_INFO = 6;
+    private static final int OPT_GO = 7;
+    private static final int OPT_STRUCTURED_REPLY = 8;
+    private static final int OPT_LIST_META_CONTEXT = 9;
+    private static final int OPT_SET_META_CONTEXT = 10;
+
+    private static final int REP_ACK = 1;
+    private static final int REP_SERVER = 2;
+    private static final int REP_INFO = 3;
+    private static final int REP_META_CONTEXT = 4;
+    private static final int REP_ERR_UNSUP = 0x80000001;
+    private static final int REP_ERR_INVALID = 0x80000003;
+    private static final int REP_ERR_UNKNOWN = 0x80000006;
+
+    private static final short INFO_EXPORT = 0;
+    private static final short INFO_BLOCK_SIZE = 3;
+
+    private static final short CMD_READ = 0;
+    private static final short CMD_WRITE = 1;
+    private static final short CMD_DISC = 2;
+    private static final short CMD_FLUSH = 3;
+    private static final short CMD_TRIM = 4;
+    private static final short CMD_WRITE_ZEROES = 6;
+    private static final short CMD_BLOCK_STATUS = 7;
+    private static final short CMD_FLAG_FUA = 1 << 0;
+    private static final short CMD_FLAG_REQ_ONE = 1 << 3;
+
+    private static final short REPLY_FLAG_DONE = 1 << 0;
+    private static final short REPLY_TYPE_NONE = 0;
+    private static final short REPLY_TYPE_OFFSET_DATA = 1;
+    private static final short REPLY_TYPE_BLOCK_STATUS = 5;
+    private static final short REPLY_TYPE_ERROR = (short) 0x8001;
+
+    // the only metadata context, which reports which parts of the device have been written
+    private static final String ALLOCATION_CONTEXT = "base:allocation";
+    private static final int ALLOCATION_CONTEXT_ID = 1;
+    private static final int STATE_HOLE = 1 << 0;
+    private static final int STATE_ZERO = 1 << 1;
+
+    private static final int EIO = 5;
+    private static final int EINVAL = 22;
+    private static final int ENOSPC = 28;
+    private static final int ENOTSUP = 95;
+
+    private static final int MAX_OPTION_LENGTH = 4096;
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final MinecraftServer server;
+    private final DeviceRegistry devices;
+    private final WriteScheduler writeScheduler;
+    private final ChunkByteCache chunkCache;
+    private final AllocationMap allocation;
+    private final ChunkResidency residency;
+    private final ChunkLocks chunkLocks;
+    private final Metrics metrics;
+    private final WriteMode writeMode;
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    public NbdServer(MinecraftServer server, DeviceRegistry devices, WriteScheduler writeScheduler, ChunkByteCache chunkCache, AllocationMap allocation, ChunkResidency residency, ChunkLocks chunkLocks, Metrics metrics, int port, WriteMode writeMode, int workerThreads) throws IOException {
+        this.server = server;
+        this.devices = devices;
+        this.writeScheduler = writeScheduler;
+        this.chunkCache = chunkCache;
+        this.allocation = allocation;
+        this.residency = residency;
+        this.chunkLocks = chunkLocks;
+        this.metrics = metrics;
+        this.writeMode = writeMode;
+        var threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            var thread = new Thread(runnable, "CraftTTP NBD Worker #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "CraftTTP NBD Server");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    public void stop() {
+        this.workers.shutdown();
+        try {
+            this.selector.close();
+            this.serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close NBD server: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs {@code command} on a worker thread, holding the locks on {@code chunks} until the future it returns has
+     * completed, the same as an HTTP request would.
+     */
+    private <T> CompletableFuture<T> locked(List<ChunkPos> chunks, boolean write, Supplier<CompletableFuture<T>> command) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (var held = write ? this.chunkLocks.write(chunks) : this.chunkLocks.read(chunks)) {
+                return command.get().join();
+            }
+        }, this.workers);
+    }
+
+    /**
+     * Syncs the write scheduler on a worker thread, since forcing the journal out blocks until the disk has it.
+     */
+    private CompletableFuture<byte[]> sync() {
+        return CompletableFuture.supplyAsync(this.writeScheduler::sync, this.workers)
+                .thenCompose(synced -> synced)
+                .thenApply(v -> null);
+    }
+
+    private void run() {
+        try {
+            while (this.selector.isOpen()) {
+                this.selector.select();
+                Connection pending;
+                while ((pending = this.pendingWrites.poll()) != null) {
+                    pending.updateInterest();
+                }
+
+                var keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.warn("Closing NBD connection {}: {}", connection.remoteAddress, e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+        } catch (IOException e) {
+            LOGGER.error("NBD server failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Looks up the device for an export name. An empty name means the default device.
+     */
+    private @Nullable BlockDevice getDevice(String exportName) {
+        return this.devices.get(exportName.isEmpty() ? DeviceRegistry.DEFAULT_DEVICE : exportName);
+    }
+
+    private void accept() throws IOException {
+        @Nullable SocketChannel channel = this.serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        var connection = new Connection(channel, String.valueOf(channel.getRemoteAddress()));
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        connection.sendGreeting();
+        LOGGER.info("Accepted NBD connection from {}", connection.remoteAddress);
+    }
+
+    private enum Phase {
+        CLIENT_FLAGS,
+        OPTIONS,
+        TRANSMISSION
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private Phase phase = Phase.CLIENT_FLAGS;
+        private @Nullable BlockDevice device;
+        private boolean noZeroes;
+        private boolean structuredReplies;
+        private boolean allocationContext;
+        private volatile boolean closing;
+
+        private Connection(SocketChannel channel, String remoteAddress) {
+            this.channel = channel;
+            this.remoteAddress = remoteAddress;
+        }
+
+        private void sendGreeting() {
+            ByteBuffer greeting = ByteBuffer.allocate(18);
+            greeting.putLong(NBDMAGIC).putLong(IHAVEOPT).putShort((short) (FLAG_FIXED_NEWSTYLE | FLAG_NO_ZEROES));
+            this.send(greeting.flip());
+        }
+
+        private void read() throws IOException {
+            if (this.channel.read(this.in) < 0) {
+                this.close();
+                return;
+            }
+
+            this.in.flip();
+            try {
+                while (!this.closing && this.handle()) {
+                }
+            } finally {
+                this.in.compact();
+            }
+        }
+
+        /**
+         * Tries to handle one message from the input buffer.
+         *
+         * @return whether a message was consumed
+         */
+        private boolean handle() throws IOException {
+            return switch (this.phase) {
+                case CLIENT_FLAGS -> this.handleClientFlags();
+                case OPTIONS -> this.handleOption();
+                case TRANSMISSION -> this.handleRequest();
+            };
+        }
+
+        private boolean handleClientFlags() {
+            if (this.in.remaining() < 4) {
+                return false;
+            }
+
+            this.noZeroes = (this.in.getInt() & CLIENT_FLAG_NO_ZEROES) != 0;
+            this.phase = Phase.OPTIONS;
+            return true;
+        }
+
+        private boolean handleOption() throws IOException {
+            if (this.in.remaining() < 16) {
+                return false;
+            }
+
+            int start = this.in.position();
+            long magic = this.in.getLong(start);
+            int option = this.in.getInt(start + 8);
+            int length = this.in.getInt(start + 12);
+            if (magic != IHAVEOPT || length < 0 || length > MAX_OPTION_LENGTH) {
+                throw new IOException("Malformed option header");
+            }
+            if (this.in.remaining() < 16 + length) {
+                return false;
+            }
+
+            this.in.position(start + 16);
+            byte[] data = new byte[length];
+            this.in.get(data);
+
+            switch (option) {
+                case OPT_EXPORT_NAME -> {
+                    @Nullable BlockDevice device = NbdServer.this.getDevice(new String(data, StandardCharsets.UTF_8));
+                    if (device == null) {
+                        // the old-style option has no way to report an error, so all we can do is hang up
+                        throw new IOException("Unknown export " + new String(data, StandardCharsets.UTF_8));
+                    }
+
+                    this.device = device;
+                    ByteBuffer reply = ByteBuffer.allocate(this.noZeroes ? 10 : 134);
+                    reply.putLong(device.length()).putShort(TRANSMISSION_FLAGS);
+                    this.send(reply.position(reply.limit()).flip());
+                    this.phase = Phase.TRANSMISSION;
+                }
+                case OPT_ABORT -> {
+                    this.sendOptionReply(option, REP_ACK, new byte[0]);
+                    this.closing = true;
+                }
+                case OPT_LIST -> {
+                    for (BlockDevice device : NbdServer.this.devices.all()) {
+                        byte[] name = device.name().getBytes(StandardCharsets.UTF_8);
+                        this.sendOptionReply(option, REP_SERVER, ByteBuffer.allocate(4 + name.length).putInt(name.length).put(name).array());
+                    }
+                    this.sendOptionReply(option, REP_ACK, new byte[0]);
+                }
+                case OPT_INFO, OPT_GO -> {
+                    ByteBuffer request = ByteBuffer.wrap(data);
+                    int nameLength = length >= 4 ? request.getInt() : -1;
+                    if (nameLength < 0 || length < 4 + nameLength + 2) {
+                        this.sendOptionReply(option, REP_ERR_INVALID, new byte[0]);
+                        return true;
+                    }
+
+                    @Nullable BlockDevice device = NbdServer.this.getDevice(new String(data, 4, nameLength, StandardCharsets.UTF_8));
+                    if (device == null) {
+                        this.sendOptionReply(option, REP_ERR_UNKNOWN, new byte[0]);
+                        return true;
+                    }
+
+                    int sectorSize = device.sectorSize() == 0 ? 4096 : device.sectorSize();
+                    this.sendOptionReply(option, REP_INFO, ByteBuffer.allocate(12)
+                            .putShort(INFO_EXPORT)
+                            .putLong(device.length())
+                            .putShort(TRANSMISSION_FLAGS)
+                            .array());
+                    this.sendOptionReply(option, REP_INFO, ByteBuffer.allocate(14)
+                            .putShort(INFO_BLOCK_SIZE)
+                            .putInt(1)
+                            .putInt(sectorSize)
+                            .putInt(CraftTTP.MAX_RANGE_LENGTH)
+                            .array());
+                    this.sendOptionReply(option, REP_ACK, new byte[0]);
+                    if (option == OPT_GO) {
+                        this.device = device;
+                        this.phase = Phase.TRANSMISSION;
+                    }
+                }
+                case OPT_STRUCTURED_REPLY -> {
+                    if (length != 0) {
+                        this.sendOptionReply(option, REP_ERR_INVALID, new byte[0]);
+                        return true;
+                    }
+                    this.structuredReplies = true;
+                    this.sendOptionReply(option, REP_ACK, new byte[0]);
+                }
+                case OPT_LIST_META_CONTEXT, OPT_SET_META_CONTEXT -> this.handleMetaContextOption(option, data);
+                default -> this.sendOptionReply(option, REP_ERR_UNSUP, new byte[0]);
+            }
+
+            return true;
+        }
+
+        /**
+         * Lists or selects metadata contexts. A request with no queries lists every context, but selects none.
+         */
+        private void handleMetaContextOption(int option, byte[] data) {
+            if (!this.structuredReplies) {
+                this.sendOptionReply(option, REP_ERR_INVALID, new byte[0]);
+                return;
+            }
+
+            boolean matched = false;
+            ByteBuffer request = ByteBuffer.wrap(data);
+            try {
+                byte[] exportName = new byte[request.getInt()];
+                request.get(exportName);
+                if (NbdServer.this.getDevice(new String(exportName, StandardCharsets.UTF_8)) == null) {
+                    this.sendOptionReply(option, REP_ERR_UNKNOWN, new byte[0]);
+                    return;
+                }
+
+                int queries = request.getInt();
+                matched = queries == 0 && option == OPT_LIST_META_CONTEXT;
+                for (int i = 0; i < queries; i++) {
+                    byte[] query = new byte[request.getInt()];
+                    request.get(query);
+                    String name = new String(query, StandardCharsets.UTF_8);
+                    matched |= name.equals(ALLOCATION_CONTEXT) || (option == OPT_LIST_META_CONTEXT && name.equals("base:"));
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                this.sendOptionReply(option, REP_ERR_INVALID, new byte[0]);
+                return;
+            }
+
+            if (matched) {
+                byte[] name = ALLOCATION_CONTEXT.getBytes(StandardCharsets.UTF_8);
+                this.sendOptionReply(option, REP_META_CONTEXT, ByteBuffer.allocate(4 + name.length).putInt(ALLOCATION_CONTEXT_ID).put(name).array());
+            }
+            if (option == OPT_SET_META_CONTEXT) {
+                this.allocationContext = matched;
+            }
+            this.sendOptionReply(option, REP_ACK, new byte[0]);
+        }
+
+        private void sendOptionReply(int option, int type, byte[] data) {
+            ByteBuffer reply = ByteBuffer.allocate(20 + data.length);
+            reply.putLong(OPTION_REPLY_MAGIC).putInt(option).putInt(type).putInt(data.length).put(data);
+            this.send(reply.flip());
+        }
+
+        private boolean handleRequest() throws IOException {
+            if (this.in.remaining() < 28) {
+                return false;
+            }
+
+            int start = this.in.position();
+            int magic = this.in.getInt(start);
+            short flags = this.in.getShort(start + 4);
+            short type = this.in.getShort(start + 6);
+            long handle = this.in.getLong(start + 8);
+            long offset = this.in.getLong(start + 16);
+            int length = this.in.getInt(start + 24);
+            if (magic != REQUEST_MAGIC) {
+                throw new IOException("Malformed request header");
+            }
+
+            if (type == CMD_WRITE) {
+                if (length < 0 || length > CraftTTP.MAX_RANGE_LENGTH) {
+                    throw new IOException("Write of %s bytes is too large".formatted(Integer.toUnsignedString(length)));
+                }
+                if (this.in.remaining() < 28 + length) {
+                    if (this.in.capacity() < 28 + length) {
+                        ByteBuffer bigger = ByteBuffer.allocate(28 + length);
+                        bigger.put(this.in);
+                        this.in = bigger.flip();
+                    }
+                    return false;
+                }
+            }
+
+            this.in.position(start + 28);
+            if (type == CMD_DISC) {
+                this.closing = true;
+                this.closeIfIdle();
+                return false;
+            }
+
+            BlockDevice device = this.device;
+            if (length < 0 || Long.compareUnsigned(offset, device.length()) > 0 || offset + length > device.length()) {
+                if (type == CMD_WRITE) {
+                    this.in.position(this.in.position() + length);
+                }
+                this.replyError(type, handle, type == CMD_READ || type == CMD_BLOCK_STATUS ? EINVAL : ENOSPC);
+                return true;
+            }
+
+            MinecraftServer server = NbdServer.this.server;
+            ChunkResidency residency = NbdServer.this.residency;
+            Metrics metrics = NbdServer.this.metrics;
+            var event = new IoEvents.Request();
+            event.begin();
+            long start = System.nanoTime();
+            CompletableFuture<byte[]> result = switch (type) {
+                case CMD_READ -> {
+                    if (length > CraftTTP.MAX_RANGE_LENGTH) {
+                        yield null;
+                    }
+                    residency.access(server.overworld(), device, offset, length);
+                    List<ChunkPos> chunks = CraftTTP.getChunksForRange(server.overworld(), device, offset, length);
+                    yield NbdServer.this.locked(chunks, false, () -> {
+                        @Nullable byte[] cached = CraftTTP.readRangeFromCache(server.overworld(), device, NbdServer.this.chunkCache, NbdServer.this.writeScheduler, NbdServer.this.allocation, offset, length);
+                        return cached != null
+                                ? CompletableFuture.completedFuture(cached)
+                                : residency.load(server.overworld(), chunks)
+                                        .thenCompose(v -> CraftTTP.submit(server, metrics, () -> CraftTTP.readRange(server.overworld(), device, NbdServer.this.chunkCache, NbdServer.this.writeScheduler, NbdServer.this.allocation, offset, length)));
+                    });
+                }
+                case CMD_WRITE -> {
+                    byte[] contents = new byte[length];
+                    this.in.get(contents);
+                    residency.access(server.overworld(), device, offset, length);
+                    metrics.recordWrite(length);
+                    yield NbdServer.this.locked(CraftTTP.getChunksForRange(server.overworld(), device, offset, length), true,
+                                    () -> CraftTTP.writeRange(metrics, server.overworld(), device, NbdServer.this.chunkCache, NbdServer.this.writeScheduler, NbdServer.this.allocation, offset, contents, NbdServer.this.writeMode))
+                            .thenCompose(v -> this.completeWrite(flags));
+                }
+                // trimmed ranges read as zeroes too, so the two are the same
+                case CMD_WRITE_ZEROES, CMD_TRIM -> NbdServer.this.locked(CraftTTP.getChunksForRange(server.overworld(), device, offset, length), true,
+                                () -> CraftTTP.zeroRange(metrics, server.overworld(), device, NbdServer.this.chunkCache, NbdServer.this.writeScheduler, NbdServer.this.allocation, offset, length))
+                        .thenCompose(v -> this.completeWrite(flags));
+                case CMD_FLUSH -> NbdServer.this.sync();
+                case CMD_BLOCK_STATUS -> this.allocationContext
+                        ? CompletableFuture.completedFuture(this.blockStatus(device, offset, length, (flags & CMD_FLAG_REQ_ONE) != 0))
+                        : null;
+                default -> null;
+            };
+
+            if (result == null) {
+                this.replyError(type, handle, type == CMD_READ || type == CMD_BLOCK_STATUS ? EINVAL : ENOTSUP);
+                return true;
+            }
+
+            if (this.inFlight.incrementAndGet() >= MAX_IN_FLIGHT) {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            result.whenComplete((data, throwable) -> {
+                if (throwable != null) {
+                    LOGGER.error("NBD command {} @ {} failed", type, offset, throwable);
+                } else if (type == CMD_READ) {
+                    metrics.recordRead(length);
+                }
+                String endpoint = "nbd_" + commandName(type);
+                metrics.recordRequest(endpoint, System.nanoTime() - start);
+                event.endpoint = endpoint;
+                event.commit();
+                this.inFlight.decrementAndGet();
+                if (throwable != null) {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    this.replyError(type, handle, cause instanceof CompressedStore.DeviceFullException ? ENOSPC : EIO);
+                } else if (type == CMD_READ && this.structuredReplies) {
+                    if (data.length == 0) {
+                        this.sendStructuredReply(handle, REPLY_TYPE_NONE);
+                    } else {
+                        this.sendStructuredReply(handle, REPLY_TYPE_OFFSET_DATA, ByteBuffer.allocate(8).putLong(0, offset), ByteBuffer.wrap(data));
+                    }
+                } else if (type == CMD_BLOCK_STATUS) {
+                    this.sendStructuredReply(handle, REPLY_TYPE_BLOCK_STATUS, ByteBuffer.wrap(data));
+                } else {
+                    this.reply(handle, 0, type == CMD_READ ? data : null);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * @return the payload of a block status reply for the allocation context, describing {@code [offset, offset +
+         * length)} of the device
+         */
+        private byte[] blockStatus(BlockDevice device, long offset, int length, boolean onlyOne) {
+            List<CraftTTP.Extent> extents = CraftTTP.getExtents(NbdServer.this.server.overworld(), NbdServer.this.devices, device, NbdServer.this.allocation, offset, length);
+            if (onlyOne && extents.size() > 1) {
+                extents = extents.subList(0, 1);
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(4 + 8 * extents.size());
+            payload.putInt(ALLOCATION_CONTEXT_ID);
+            for (CraftTTP.Extent extent : extents) {
+                payload.putInt((int) extent.length()).putInt(extent.allocated() ? 0 : STATE_HOLE | STATE_ZERO);
+            }
+            return payload.array();
+        }
+
+        private String commandName(short type) {
+            return switch (type) {
+                case CMD_READ -> "read";
+                case CMD_WRITE -> "write";
+                case CMD_FLUSH -> "flush";
+                case CMD_TRIM -> "trim";
+                case CMD_WRITE_ZEROES -> "write_zeroes";
+                case CMD_BLOCK_STATUS -> "block_status";
+                default -> "other";
+            };
+        }
+
+        /**
+         * Writes are acknowledged as soon as they are queued, unless the client asked for forced unit access, in which
+         * case they are acknowledged once they are durable.
+         */
+        private CompletableFuture<byte[]> completeWrite(short flags) {
+            return (flags & CMD_FLAG_FUA) != 0
+                    ? NbdServer.this.sync()
+                    : CompletableFuture.completedFuture(null);
+        }
+
+        private void reply(long handle, int error, @Nullable byte[] data) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(SIMPLE_REPLY_MAGIC).putInt(error).putLong(handle);
+            // queue the header and payload together so replies from different threads don't interleave
+            synchronized (this.out) {
+                this.out.add(header.flip());
+                if (data != null) {
+                    this.out.add(ByteBuffer.wrap(data));
+                }
+            }
+            NbdServer.this.pendingWrites.add(this);
+            NbdServer.this.selector.wakeup();
+        }
+
+        /**
+         * Replies with an error. Once structured replies have been negotiated, reads must be answered with structured
+         * replies, errors included.
+         */
+        private void replyError(short type, long handle, int error) {
+            if (type == CMD_READ && this.structuredReplies) {
+                this.sendStructuredReply(handle, REPLY_TYPE_ERROR, ByteBuffer.allocate(6).putInt(0, error).putShort(4, (short) 0));
+            } else {
+                this.reply(handle, error, null);
+            }
+        }
+
+        /**
+         * Sends the one and only chunk of a structured reply.
+         */
+        private void sendStructuredReply(long handle, short replyType, ByteBuffer... payload) {
+            int length = 0;
+            for (ByteBuffer part : payload) {
+                length += part.remaining();
+            }
+            ByteBuffer header = ByteBuffer.allocate(20);
+            header.putInt(STRUCTURED_REPLY_MAGIC).putShort(REPLY_FLAG_DONE).putShort(replyType).putLong(handle).putInt(length);
+            synchronized (this.out) {
+                this.out.add(header.flip());
+                this.out.addAll(List.of(payload));
+            }
+            NbdServer.this.pendingWrites.add(this);
+            NbdServer.this.selector.wakeup();
+        }
+
+        private void send(ByteBuffer buffer) {
+            this.out.add(buffer);
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        private void updateInterest() {
+            if (!this.key.isValid()) {
+                return;
+            }
+
+            int ops = SelectionKey.OP_READ;
+            if (!this.out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (this.inFlight.get() >= MAX_IN_FLIGHT || this.closing) {
+                ops &= ~SelectionKey.OP_READ;
+            }
+            this.key.interestOps(ops);
+            this.closeIfIdle();
+        }
+
+        private void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = this.out.peek()) != null) {
+                this.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                this.out.poll();
+            }
+
+            this.updateInterest();
+        }
+
+        private void closeIfIdle() {
+            if (this.closing && this.inFlight.get() == 0 && this.out.isEmpty()) {
+                this.close();
+            }
+        }
+
+        private void close() {
+            this.key.cancel();
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
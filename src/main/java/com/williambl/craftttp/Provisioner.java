@@ -0,0 +1,182 @@
+package com.williambl.craftttp;
+
+import net.minecraft.core.SectionPos;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formats many chunks as memory in the background, a few chunks per server tick.
+ * <p>
+ * Jobs are worked through in the order they were submitted, formatting whole chunks until this tick's time budget
+ * runs out. Chunks are never loaded on the server thread: the next few chunks of a job are given tickets so that the
+ * chunk system loads them in the background, and a job waits for a later tick if its next chunk hasn't loaded yet.
+ * Finished jobs are kept for a while so that their progress can still be reported.
+ */
+public class Provisioner {
+    private static final int FINISHED_JOBS_KEPT = 16;
+    private static final TicketType<ChunkPos> TICKET = TicketType.create("craftttp_provision", Comparator.comparingLong(ChunkPos::toLong));
+    // region ticket distance 0 loads the chunk fully without ticking it
+    private static final int TICKET_DISTANCE = 0;
+    // how many chunks of a job are asked to load ahead of the one being formatted
+    private static final int LOAD_AHEAD = 16;
+
+    private final long budgetNanos;
+    private final ChunkByteCache chunkCache;
+    private final AllocationMap allocation;
+    private final Map<Integer, Job> jobs = new LinkedHashMap<>();
+    private int nextId = 1;
+
+    public Provisioner(long budgetNanos, ChunkByteCache chunkCache, AllocationMap allocation) {
+        this.budgetNanos = budgetNanos;
+        this.chunkCache = chunkCache;
+        this.allocation = allocation;
+    }
+
+    public synchronized Job submit(String description, List<ChunkPos> chunks, CellCodec codec) {
+        var job = new Job(this.nextId++, description, List.copyOf(chunks), codec);
+        this.jobs.put(job.id, job);
+        return job;
+    }
+
+    public synchronized @Nullable Job get(int id) {
+        return this.jobs.get(id);
+    }
+
+    public synchronized List<Job> jobs() {
+        return new ArrayList<>(this.jobs.values());
+    }
+
+    /**
+     * Formats loaded chunks until this tick's budget is spent, and asks for the next ones to be loaded. Must be called
+     * on the server thread.
+     */
+    public void tick(ServerLevel level) {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < this.budgetNanos) {
+            @Nullable Job job = this.nextUnfinished();
+            if (job == null) {
+                break;
+            }
+
+            for (int end = Math.min(job.chunks.size(), job.done + LOAD_AHEAD); job.requested < end; job.requested++) {
+                ChunkPos pos = job.chunks.get(job.requested);
+                level.getChunkSource().addRegionTicket(TICKET, pos, TICKET_DISTANCE, pos);
+            }
+
+            ChunkPos pos = job.chunks.get(job.done);
+            @Nullable LevelChunk chunk = level.getChunkSource().getChunkNow(pos.x, pos.z);
+            if (chunk == null) {
+                break;
+            }
+
+            format(level, chunk, job.codec);
+            this.chunkCache.invalidate(pos);
+            // the chunk is all zeroes now, so none of it needs reading from the world
+            this.allocation.clear(pos);
+            level.getChunkSource().removeRegionTicket(TICKET, pos, TICKET_DISTANCE, pos);
+            job.done++;
+            if (job.isFinished()) {
+                CraftTTP.LOGGER.info("Finished provisioning job {} ({}): {} chunks", job.id, job.description, job.chunks.size());
+            }
+        }
+    }
+
+    private synchronized @Nullable Job nextUnfinished() {
+        @Nullable Job next = null;
+        int finished = 0;
+        for (Job job : this.jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            } else if (next == null) {
+                next = job;
+            }
+        }
+
+        Iterator<Job> iterator = this.jobs.values().iterator();
+        while (finished > FINISHED_JOBS_KEPT && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Replaces a chunk's blocks with empty memory cells, then brings its lighting and heightmaps up to date and sends
+     * it to players. Lighting is updated once per section and heightmaps once per chunk, rather than per block.
+     */
+    public static void format(ServerLevel level, LevelChunk chunk, CellCodec codec) {
+        ChunkPos chunkPos = chunk.getPos();
+        LevelChunkSection[] sections = chunk.getSections();
+        for (int i = 0; i < sections.length; i++) {
+            if (sections[i] == null) {
+                sections[i] = new LevelChunkSection(level.getSectionYFromSectionIndex(i), level.registryAccess().registryOrThrow(Registries.BIOME));
+            }
+        }
+        codec.format(level, sections);
+
+        for (int i = 0; i < sections.length; i++) {
+            level.getChunkSource().getLightEngine().updateSectionStatus(SectionPos.of(chunkPos, level.getSectionYFromSectionIndex(i)), sections[i].hasOnlyAir());
+        }
+        Heightmap.primeHeightmaps(chunk, EnumSet.allOf(Heightmap.Types.class));
+
+        chunk.clearAllBlockEntities();
+        chunk.setUnsaved(true);
+        level.getChunkSource().chunkMap.resendChunk(chunk);
+    }
+
+    public static final class Job {
+        private final int id;
+        private final String description;
+        private final List<ChunkPos> chunks;
+        private final CellCodec codec;
+        // only written on the server thread
+        private volatile int done;
+        // how many chunks have been given tickets, only used on the server thread
+        private int requested;
+
+        private Job(int id, String description, List<ChunkPos> chunks, CellCodec codec) {
+            this.id = id;
+            this.description = description;
+            this.chunks = chunks;
+            this.codec = codec;
+        }
+
+        public int id() {
+            return this.id;
+        }
+
+        public int done() {
+            return this.done;
+        }
+
+        public int total() {
+            return this.chunks.size();
+        }
+
+        public boolean isFinished() {
+            return this.done >= this.chunks.size();
+        }
+
+        @Override
+        public String toString() {
+            return "%s %s %s %s/%s".formatted(this.id, this.description, this.codec.name(), this.done, this.chunks.size());
+        }
+    }
+}
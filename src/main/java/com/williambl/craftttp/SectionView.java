@@ -0,0 +1,104 @@
+package com.williambl.craftttp;
+
+import net.minecraft.util.BitStorage;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.GlobalPalette;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.Palette;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A reusable view over one section's packed block states, which translates palette ids to cell values through a
+ * table indexed by global block state id. A value of 0 means the block isn't a memory cell.
+ * <p>
+ * The table for the section's own palette is only rebuilt when the palette or storage changes, and sections using the
+ * global palette are looked up in the global table directly.
+ */
+final class SectionView {
+    private static final ThreadLocal<SectionView> VIEWS = ThreadLocal.withInitial(SectionView::new);
+
+    // palettes with more than 256 entries are replaced by the global palette
+    private final byte[] paletteTable = new byte[256];
+    private byte[] globalTable = new byte[0];
+    private @Nullable PalettedContainer<BlockState> states;
+    private @Nullable PalettedContainer.Data<BlockState> data;
+    private @Nullable BitStorage storage;
+    private boolean usesGlobalPalette;
+    private int paletteSize;
+
+    private SectionView() {
+    }
+
+    /**
+     * @return this thread's view, which must be {@link #unbind unbound} when the caller is done with it
+     */
+    static SectionView get() {
+        return VIEWS.get();
+    }
+
+    /**
+     * Builds a table from global block state id to cell value. Must not be called before the block registry is
+     * complete.
+     */
+    static byte[] buildTable(CellValue cellValue) {
+        byte[] table = new byte[Block.BLOCK_STATE_REGISTRY.size()];
+        for (BlockState state : Block.BLOCK_STATE_REGISTRY) {
+            table[Block.BLOCK_STATE_REGISTRY.getId(state)] = cellValue.of(state);
+        }
+        return table;
+    }
+
+    void bind(@Nullable LevelChunkSection section, byte[] globalTable) {
+        this.globalTable = globalTable;
+        this.states = section == null || section.hasOnlyAir() ? null : section.getStates();
+        this.data = null;
+    }
+
+    void unbind() {
+        this.states = null;
+        this.data = null;
+        this.storage = null;
+    }
+
+    byte get(int x, int y, int z) {
+        if (this.states == null) {
+            return 0;
+        }
+
+        // writes can grow the palette or replace the storage entirely, so check we are still looking at the same data
+        if (this.states.data != this.data) {
+            this.refresh();
+        }
+
+        int id = this.storage.get(y << 8 | z << 4 | x);
+        if (this.usesGlobalPalette) {
+            return this.globalTable[id];
+        }
+        if (id >= this.paletteSize) {
+            this.refresh();
+        }
+        return this.paletteTable[id];
+    }
+
+    private void refresh() {
+        this.data = this.states.data;
+        this.storage = this.data.storage();
+        Palette<BlockState> palette = this.data.palette();
+        this.usesGlobalPalette = palette instanceof GlobalPalette<?>;
+        if (this.usesGlobalPalette) {
+            return;
+        }
+
+        this.paletteSize = palette.getSize();
+        for (int id = 0; id < this.paletteSize; id++) {
+            this.paletteTable[id] = this.globalTable[Block.BLOCK_STATE_REGISTRY.getId(palette.valueFor(id))];
+        }
+    }
+
+    @FunctionalInterface
+    interface CellValue {
+        byte of(BlockState state);
+    }
+}
@@ -0,0 +1,261 @@
+package com.williambl.craftttp;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.sounds.SoundEvents;
+import net.minecraft.sounds.SoundSource;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.LeverBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.AttachFace;
+import net.minecraft.world.level.block.state.properties.BlockStateProperties;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.gameevent.GameEvent;
+
+/**
+ * Stores one bit per torch/lever pair, in the memory cells laid down by {@code /generate_memory}.
+ * <p>
+ * Every layer above the floor has four bit lines along z (torch, wool, lever, scaffolding), and each line is 16 cells,
+ * or two bytes, wide. A layer therefore holds {@value #BYTES_PER_LAYER} bytes, and the cells for byte {@code n} are
+ * always in the same place, so any offset can be found without walking the ones before it.
+ * <p>
+ * Cells are read straight from each section's palette and packed storage, through tables which map a palette id to
+ * the value of the cell, rather than by looking up properties on every block state.
+ */
+public final class TorchLeverCodec implements CellCodec {
+    public static final int BYTES_PER_LAYER = 8;
+    private static final int TORCH_Z = 0;
+    private static final int LEVER_Z = 2;
+
+    // cell values in the lookup tables
+    private static final byte NOT_A_CELL = 0;
+    private static final byte OFF = 1;
+    private static final byte ON = 2;
+
+    TorchLeverCodec() {
+    }
+
+    @Override
+    public String name() {
+        return "torch_lever";
+    }
+
+    @Override
+    public int capacity(LevelHeightAccessor level) {
+        return (level.getMaxBuildHeight() - level.getMinBuildHeight() - 1) * BYTES_PER_LAYER;
+    }
+
+    @Override
+    public int settleTicks() {
+        // a torch takes two ticks to follow its lever, plus one for the write landing part way through a tick
+        return 3;
+    }
+
+    @Override
+    public boolean isCellState(BlockState state) {
+        return state.is(Blocks.REDSTONE_WALL_TORCH);
+    }
+
+    @Override
+    public void onCellChanged(LevelHeightAccessor level, BlockPos pos, BlockState state, byte[] contents) {
+        int layer = pos.getY() - level.getMinBuildHeight() - 1;
+        int z = pos.getZ() & 15;
+        if (layer < 0 || z % 4 != TORCH_Z) {
+            return;
+        }
+
+        int x = pos.getX() & 15;
+        int index = layer * BYTES_PER_LAYER + (z / 4) * 2 + x / 8;
+        if (index >= contents.length) {
+            return;
+        }
+
+        if (Tables.TORCHES[Block.BLOCK_STATE_REGISTRY.getId(state)] == ON) {
+            contents[index] |= (byte) (1 << (x % 8));
+        } else {
+            contents[index] &= (byte) ~(1 << (x % 8));
+        }
+    }
+
+    @Override
+    public void read(LevelHeightAccessor level, LevelChunkSection[] sections, int offset, byte[] out, int outOffset, int length) {
+        int capacity = this.capacity(level);
+        SectionView view = SectionView.get();
+        int boundSection = -1;
+        for (int i = 0; i < length; i++) {
+            int index = offset + i;
+            if (index >= capacity) {
+                out[outOffset + i] = 0;
+                continue;
+            }
+
+            int y = level.getMinBuildHeight() + 1 + index / BYTES_PER_LAYER;
+            int sectionIndex = level.getSectionIndex(y);
+            if (sectionIndex != boundSection) {
+                view.bind(sections[sectionIndex], Tables.TORCHES);
+                boundSection = sectionIndex;
+            }
+
+            int withinLayer = index % BYTES_PER_LAYER;
+            int z = (withinLayer / 2) * 4 + TORCH_Z;
+            int xStart = (withinLayer % 2) * 8;
+            byte result = 0;
+            for (int x = 0; x < 8; x++) {
+                if (view.get(xStart + x, y & 15, z) == ON) {
+                    result |= (byte) (1 << x);
+                }
+            }
+            out[outOffset + i] = result;
+        }
+        view.unbind();
+    }
+
+    @Override
+    public int write(ServerLevel level, LevelChunk chunk, int offset, byte[] toWrite, WriteMode mode) {
+        LevelChunkSection[] sections = chunk.getSections();
+        int capacity = this.capacity(level);
+        int minX = chunk.getPos().getMinBlockX();
+        int minZ = chunk.getPos().getMinBlockZ();
+        SectionView view = SectionView.get();
+        var cursor = new BlockPos.MutableBlockPos();
+        LongList flippedLevers = new LongArrayList();
+        int boundSection = -1;
+        int flips = 0;
+        for (int i = 0; i < toWrite.length && offset + i < capacity; i++) {
+            int index = offset + i;
+            int y = level.getMinBuildHeight() + 1 + index / BYTES_PER_LAYER;
+            int sectionIndex = level.getSectionIndex(y);
+            if (sectionIndex != boundSection) {
+                notifyTorches(level, flippedLevers);
+                view.bind(sections[sectionIndex], Tables.LEVERS);
+                boundSection = sectionIndex;
+            }
+
+            int withinLayer = index % BYTES_PER_LAYER;
+            int z = (withinLayer / 2) * 4 + LEVER_Z;
+            int xStart = (withinLayer % 2) * 8;
+            byte byteToWrite = toWrite[i];
+            for (int x = 0; x < 8; x++) {
+                byte cell = view.get(xStart + x, y & 15, z);
+                if (cell == NOT_A_CELL) {
+                    continue;
+                }
+
+                // a powered lever puts its torch out, so a set bit is an unpowered lever
+                boolean isBitOn = ((byteToWrite >> x) & 1) != 0;
+                if (isBitOn != (cell == ON)) {
+                    continue;
+                }
+
+                BlockPos pos = cursor.set(minX + xStart + x, y, minZ + z).immutable();
+                BlockState state = chunk.getBlockState(pos);
+                flips++;
+                if (mode == WriteMode.BULK) {
+                    level.setBlock(pos, state.cycle(BlockStateProperties.POWERED), Block.UPDATE_CLIENTS | Block.UPDATE_KNOWN_SHAPE);
+                    flippedLevers.add(pos.asLong());
+                    continue;
+                }
+
+                // we don't set it straight to the section because we want block updates from redstone + clicky sounds :)
+                var result = ((LeverBlock) Blocks.LEVER).pull(state, level, pos);
+                float f = result.getValue(BlockStateProperties.POWERED) ? 0.6F : 0.5F;
+                level.playSound(null, pos, SoundEvents.LEVER_CLICK, SoundSource.BLOCKS, 0.3F, f);
+                level.gameEvent(null, result.getValue(BlockStateProperties.POWERED) ? GameEvent.BLOCK_ACTIVATE : GameEvent.BLOCK_DEACTIVATE, pos);
+            }
+        }
+
+        notifyTorches(level, flippedLevers);
+        view.unbind();
+        return flips;
+    }
+
+    @Override
+    public void encode(LevelHeightAccessor level, LevelChunkSection[] sections, int offset, byte[] data) {
+        int capacity = this.capacity(level);
+        for (int i = 0; i < data.length && offset + i < capacity; i++) {
+            int index = offset + i;
+            int y = level.getMinBuildHeight() + 1 + index / BYTES_PER_LAYER;
+            LevelChunkSection section = sections[level.getSectionIndex(y)];
+            int withinLayer = index % BYTES_PER_LAYER;
+            int torchZ = (withinLayer / 2) * 4 + TORCH_Z;
+            int leverZ = (withinLayer / 2) * 4 + LEVER_Z;
+            int xStart = (withinLayer % 2) * 8;
+            for (int x = 0; x < 8; x++) {
+                boolean isBitOn = ((data[i] >> x) & 1) != 0;
+                BlockState torch = section.getBlockState(xStart + x, y & 15, torchZ);
+                BlockState lever = section.getBlockState(xStart + x, y & 15, leverZ);
+                if (Tables.TORCHES[Block.BLOCK_STATE_REGISTRY.getId(torch)] == NOT_A_CELL || Tables.LEVERS[Block.BLOCK_STATE_REGISTRY.getId(lever)] == NOT_A_CELL) {
+                    continue;
+                }
+
+                section.setBlockState(xStart + x, y & 15, torchZ, torch.setValue(BlockStateProperties.LIT, isBitOn), false);
+                section.setBlockState(xStart + x, y & 15, leverZ, lever.setValue(BlockStateProperties.POWERED, !isBitOn), false);
+            }
+        }
+    }
+
+    @Override
+    public void format(LevelHeightAccessor level, LevelChunkSection[] sections) {
+        int minY = level.getMinBuildHeight();
+        int maxY = level.getMaxBuildHeight();
+        for (int y = minY; y < maxY; y++) {
+            LevelChunkSection section = sections[level.getSectionIndex(y)];
+            if (y == minY) {
+                for (int x = 0; x < 16; x++)
+                    for (int z = 0; z < 16; z++) {
+                        section.setBlockState(x, y & 15, z, Blocks.WHITE_WOOL.defaultBlockState());
+                    }
+            } else {
+                for (int z = 0; z < 16; z++) {
+                    BlockState state = switch (z % 4) {
+                        case 0 -> Blocks.REDSTONE_WALL_TORCH.defaultBlockState().setValue(BlockStateProperties.HORIZONTAL_FACING, Direction.NORTH).setValue(BlockStateProperties.LIT, false);
+                        case 1 -> Blocks.ORANGE_WOOL.defaultBlockState();
+                        case 2 -> Blocks.LEVER.defaultBlockState().setValue(BlockStateProperties.ATTACH_FACE, AttachFace.WALL).setValue(BlockStateProperties.HORIZONTAL_FACING, Direction.SOUTH).setValue(BlockStateProperties.POWERED, true);
+                        case 3 -> Blocks.SCAFFOLDING.defaultBlockState().setValue(BlockStateProperties.STABILITY_DISTANCE, 0);
+                        default -> throw new IllegalStateException("Unexpected value: " + z % 4);
+                    };
+
+                    for (int x = 0; x < 16; x++) {
+                        if (state.getBlock() == Blocks.ORANGE_WOOL && x == 8) {
+                            state = Blocks.MAGENTA_WOOL.defaultBlockState();
+                        }
+                        section.setBlockState(x, y & 15, z, state);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the torch in front of each flipped lever's wool block that its input changed, then clears the list. The
+     * lever, wool and torch are laid out in a line, so the torch is two blocks behind the lever.
+     */
+    private static void notifyTorches(ServerLevel level, LongList flippedLevers) {
+        var leverPos = new BlockPos.MutableBlockPos();
+        for (int i = 0; i < flippedLevers.size(); i++) {
+            leverPos.set(flippedLevers.getLong(i));
+            Direction behind = level.getBlockState(leverPos).getValue(BlockStateProperties.HORIZONTAL_FACING).getOpposite();
+            BlockPos woolPos = leverPos.relative(behind);
+            level.neighborChanged(woolPos.relative(behind), Blocks.LEVER, woolPos);
+        }
+        flippedLevers.clear();
+    }
+
+    /**
+     * Lookup tables from global block state id to cell value, built once the block registry is complete.
+     */
+    private static final class Tables {
+        private static final byte[] TORCHES = SectionView.buildTable(state -> state.hasProperty(BlockStateProperties.LIT)
+                ? state.getValue(BlockStateProperties.LIT) ? ON : OFF
+                : NOT_A_CELL);
+        private static final byte[] LEVERS = SectionView.buildTable(state -> state.hasProperty(BlockStateProperties.POWERED) && state.hasProperty(BlockStateProperties.ATTACH_FACE)
+                ? state.getValue(BlockStateProperties.POWERED) ? ON : OFF
+                : NOT_A_CELL);
+    }
+}
@@ -0,0 +1,183 @@
+package com.williambl.craftttp;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.sounds.SoundEvents;
+import net.minecraft.sounds.SoundSource;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.gameevent.GameEvent;
+
+/**
+ * Stores four bits in every block of the chunk, as one of the sixteen colours of wool.
+ * <p>
+ * Nibbles are laid out x first, then z, then y from the bottom of the world, with the low nibble of each byte first.
+ * That makes a layer hold 128 bytes and a 384 block tall chunk hold 48 KiB, a whole number of 4 KiB sectors. Blocks
+ * which aren't wool read as 0, and are left alone by writes.
+ */
+public final class WoolCodec implements CellCodec {
+    private static final int NIBBLES_PER_LAYER = 16 * 16;
+    private static final int BYTES_PER_LAYER = NIBBLES_PER_LAYER / 2;
+    // in dye colour order, so that white (0) is what a formatted chunk reads as
+    private static final Block[] WOOLS = {
+            Blocks.WHITE_WOOL, Blocks.ORANGE_WOOL, Blocks.MAGENTA_WOOL, Blocks.LIGHT_BLUE_WOOL,
+            Blocks.YELLOW_WOOL, Blocks.LIME_WOOL, Blocks.PINK_WOOL, Blocks.GRAY_WOOL,
+            Blocks.LIGHT_GRAY_WOOL, Blocks.CYAN_WOOL, Blocks.PURPLE_WOOL, Blocks.BLUE_WOOL,
+            Blocks.BROWN_WOOL, Blocks.GREEN_WOOL, Blocks.RED_WOOL, Blocks.BLACK_WOOL
+    };
+
+    WoolCodec() {
+    }
+
+    @Override
+    public String name() {
+        return "wool";
+    }
+
+    @Override
+    public int capacity(LevelHeightAccessor level) {
+        return (level.getMaxBuildHeight() - level.getMinBuildHeight()) * BYTES_PER_LAYER;
+    }
+
+    @Override
+    public int settleTicks() {
+        return 0;
+    }
+
+    @Override
+    public boolean isCellState(BlockState state) {
+        return Tables.WOOLS[Block.BLOCK_STATE_REGISTRY.getId(state)] != 0;
+    }
+
+    @Override
+    public void onCellChanged(LevelHeightAccessor level, BlockPos pos, BlockState state, byte[] contents) {
+        int nibble = (pos.getY() - level.getMinBuildHeight()) * NIBBLES_PER_LAYER + (pos.getZ() & 15) * 16 + (pos.getX() & 15);
+        int index = nibble / 2;
+        if (nibble < 0 || index >= contents.length) {
+            return;
+        }
+
+        // a block which isn't wool reads as 0, the same as white wool
+        int value = Math.max(0, Tables.WOOLS[Block.BLOCK_STATE_REGISTRY.getId(state)] - 1);
+        int shift = (nibble % 2) * 4;
+        contents[index] = (byte) (contents[index] & ~(0xF << shift) | value << shift);
+    }
+
+    @Override
+    public void read(LevelHeightAccessor level, LevelChunkSection[] sections, int offset, byte[] out, int outOffset, int length) {
+        int capacity = this.capacity(level);
+        SectionView view = SectionView.get();
+        int boundSection = -1;
+        for (int i = 0; i < length; i++) {
+            int index = offset + i;
+            if (index >= capacity) {
+                out[outOffset + i] = 0;
+                continue;
+            }
+
+            int y = level.getMinBuildHeight() + index / BYTES_PER_LAYER;
+            int sectionIndex = level.getSectionIndex(y);
+            if (sectionIndex != boundSection) {
+                view.bind(sections[sectionIndex], Tables.WOOLS);
+                boundSection = sectionIndex;
+            }
+
+            int nibble = (index % BYTES_PER_LAYER) * 2;
+            int low = Math.max(0, view.get(nibble & 15, y & 15, nibble >> 4) - 1);
+            int high = Math.max(0, view.get((nibble + 1) & 15, y & 15, nibble >> 4) - 1);
+            out[outOffset + i] = (byte) (low | high << 4);
+        }
+        view.unbind();
+    }
+
+    @Override
+    public int write(ServerLevel level, LevelChunk chunk, int offset, byte[] toWrite, WriteMode mode) {
+        LevelChunkSection[] sections = chunk.getSections();
+        int capacity = this.capacity(level);
+        int minX = chunk.getPos().getMinBlockX();
+        int minZ = chunk.getPos().getMinBlockZ();
+        int flags = mode == WriteMode.BULK ? Block.UPDATE_CLIENTS | Block.UPDATE_KNOWN_SHAPE : Block.UPDATE_ALL;
+        SectionView view = SectionView.get();
+        var cursor = new BlockPos.MutableBlockPos();
+        int boundSection = -1;
+        int changes = 0;
+        for (int i = 0; i < toWrite.length && offset + i < capacity; i++) {
+            int index = offset + i;
+            int y = level.getMinBuildHeight() + index / BYTES_PER_LAYER;
+            int sectionIndex = level.getSectionIndex(y);
+            if (sectionIndex != boundSection) {
+                view.bind(sections[sectionIndex], Tables.WOOLS);
+                boundSection = sectionIndex;
+            }
+
+            for (int half = 0; half < 2; half++) {
+                int nibble = (index % BYTES_PER_LAYER) * 2 + half;
+                int x = nibble & 15;
+                int z = nibble >> 4;
+                int cell = view.get(x, y & 15, z);
+                int value = (toWrite[i] >> (half * 4)) & 0xF;
+                if (cell == 0 || cell - 1 == value) {
+                    continue;
+                }
+
+                cursor.set(minX + x, y, minZ + z);
+                level.setBlock(cursor, WOOLS[value].defaultBlockState(), flags);
+                changes++;
+                if (mode == WriteMode.CLICKY) {
+                    level.playSound(null, cursor, SoundEvents.WOOL_PLACE, SoundSource.BLOCKS, 0.3F, 0.8F);
+                    level.gameEvent(null, GameEvent.BLOCK_CHANGE, cursor.immutable());
+                }
+            }
+        }
+
+        view.unbind();
+        return changes;
+    }
+
+    @Override
+    public void encode(LevelHeightAccessor level, LevelChunkSection[] sections, int offset, byte[] data) {
+        int capacity = this.capacity(level);
+        for (int i = 0; i < data.length && offset + i < capacity; i++) {
+            int index = offset + i;
+            int y = level.getMinBuildHeight() + index / BYTES_PER_LAYER;
+            LevelChunkSection section = sections[level.getSectionIndex(y)];
+            for (int half = 0; half < 2; half++) {
+                int nibble = (index % BYTES_PER_LAYER) * 2 + half;
+                if (Tables.WOOLS[Block.BLOCK_STATE_REGISTRY.getId(section.getBlockState(nibble & 15, y & 15, nibble >> 4))] != 0) {
+                    section.setBlockState(nibble & 15, y & 15, nibble >> 4, WOOLS[(data[i] >> (half * 4)) & 0xF].defaultBlockState(), false);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void format(LevelHeightAccessor level, LevelChunkSection[] sections) {
+        BlockState white = WOOLS[0].defaultBlockState();
+        for (int y = level.getMinBuildHeight(); y < level.getMaxBuildHeight(); y++) {
+            LevelChunkSection section = sections[level.getSectionIndex(y)];
+            for (int x = 0; x < 16; x++)
+                for (int z = 0; z < 16; z++) {
+                    section.setBlockState(x, y & 15, z, white);
+                }
+        }
+    }
+
+    /**
+     * Lookup table from global block state id to one more than the nibble a block holds, built once the block registry
+     * is complete.
+     */
+    private static final class Tables {
+        private static final byte[] WOOLS = SectionView.buildTable(state -> {
+            for (int i = 0; i < WoolCodec.WOOLS.length; i++) {
+                if (state.is(WoolCodec.WOOLS[i])) {
+                    return (byte) (i + 1);
+                }
+            }
+            return 0;
+        });
+    }
+}
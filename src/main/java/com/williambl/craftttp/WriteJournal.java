@@ -0,0 +1,189 @@
+package com.williambl.craftttp;
+
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of queued writes, kept in a memory-mapped file so that appending to it is a memory copy.
+ * <p>
+ * The file starts with a header holding the current epoch, followed by records which each carry the epoch they were
+ * written in and a checksum. {@link #reset} starts a new epoch rather than clearing the file, so stale records left
+ * after the end of the current ones, and a record torn by a crash, are never replayed.
+ */
+public class WriteJournal implements AutoCloseable {
+    private static final int FILE_MAGIC = 0x43544A31; // CTJ1
+    private static final int RECORD_MAGIC = 0x4A524543; // JREC
+    private static final int HEADER_LENGTH = 12;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long epoch;
+    private int records;
+
+    private WriteJournal(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+        if (this.buffer.getInt(0) == FILE_MAGIC) {
+            this.epoch = this.buffer.getLong(4);
+        } else {
+            this.writeHeader();
+        }
+        this.buffer.position(HEADER_LENGTH);
+    }
+
+    public static WriteJournal open(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        return new WriteJournal(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Reads every record of the current epoch, stopping at the first one which is torn, corrupt or stale.
+     */
+    public synchronized List<Entry> read() {
+        List<Entry> entries = new ArrayList<>();
+        var view = this.buffer.duplicate().position(HEADER_LENGTH);
+        try {
+            while (view.remaining() >= 4 && view.getInt() == RECORD_MAGIC) {
+                int start = view.position();
+                if (view.getLong() != this.epoch) {
+                    break;
+                }
+                var pos = new ChunkPos(view.getInt(), view.getInt());
+                byte[] codecName = new byte[view.get() & 0xFF];
+                view.get(codecName);
+                byte modeOrdinal = view.get();
+                int offset = view.getInt();
+                byte[] data = new byte[view.getInt()];
+                view.get(data);
+
+                var crc = new CRC32();
+                crc.update(view.duplicate().position(start).limit(view.position()));
+                @Nullable CellCodec codec = CellCodecs.byName(new String(codecName, StandardCharsets.UTF_8));
+                if ((int) crc.getValue() != view.getInt() || codec == null || modeOrdinal < 0 || modeOrdinal >= WriteMode.values().length) {
+                    break;
+                }
+                entries.add(new Entry(pos, codec, offset, data, WriteMode.values()[modeOrdinal]));
+                this.buffer.position(view.position());
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            // a torn record at the end of the journal
+        }
+
+        this.records = entries.size();
+        return entries;
+    }
+
+    public synchronized void append(ChunkPos pos, CellCodec codec, int offset, byte[] data, WriteMode mode) throws IOException {
+        byte[] codecName = codec.name().getBytes(StandardCharsets.UTF_8);
+        this.ensureCapacity((long) this.buffer.position() + recordLength(codecName.length, data.length) + 4);
+
+        int start = this.buffer.position();
+        this.buffer.putInt(RECORD_MAGIC);
+        this.buffer.putLong(this.epoch);
+        this.buffer.putInt(pos.x).putInt(pos.z);
+        this.buffer.put((byte) codecName.length).put(codecName);
+        this.buffer.put((byte) mode.ordinal());
+        this.buffer.putInt(offset).putInt(data.length).put(data);
+        var crc = new CRC32();
+        crc.update(this.buffer.duplicate().position(start + 4).limit(this.buffer.position()));
+        this.buffer.putInt((int) crc.getValue());
+        // so that a reader never mistakes what follows for another record
+        this.buffer.putInt(this.buffer.position(), 0);
+        this.records++;
+    }
+
+    /**
+     * Replaces every record with {@code entries}, in a new epoch. Room for them is made before the old records are
+     * forgotten, so if that fails the journal is left as it was.
+     */
+    public synchronized void rewrite(List<Entry> entries) throws IOException {
+        long length = HEADER_LENGTH + 4;
+        for (Entry entry : entries) {
+            length += recordLength(entry.codec().name().getBytes(StandardCharsets.UTF_8).length, entry.data().length);
+        }
+        this.ensureCapacity(length);
+
+        this.reset();
+        for (Entry entry : entries) {
+            this.append(entry.pos(), entry.codec(), entry.offset(), entry.data(), entry.mode());
+        }
+    }
+
+    /**
+     * Forgets every record, by starting a new epoch.
+     */
+    public synchronized void reset() {
+        this.epoch++;
+        this.writeHeader();
+        this.buffer.position(HEADER_LENGTH);
+        this.buffer.putInt(HEADER_LENGTH, 0);
+        this.records = 0;
+    }
+
+    public synchronized long epoch() {
+        return this.epoch;
+    }
+
+    /**
+     * @return how many records the current epoch holds
+     */
+    public synchronized int records() {
+        return this.records;
+    }
+
+    /**
+     * Makes sure everything appended so far is on disk, and not just in the page cache.
+     */
+    public synchronized void force() {
+        this.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    private void writeHeader() {
+        this.buffer.putInt(0, FILE_MAGIC);
+        this.buffer.putLong(4, this.epoch);
+    }
+
+    private static int recordLength(int codecNameLength, int dataLength) {
+        return 4 + 8 + 8 + 1 + codecNameLength + 1 + 4 + 4 + dataLength + 4;
+    }
+
+    /**
+     * Grows the file, if need be, so that it is at least {@code needed} bytes long.
+     */
+    private void ensureCapacity(long needed) throws IOException {
+        if (this.buffer.capacity() >= needed) {
+            return;
+        }
+
+        int position = this.buffer.position();
+        long size = Math.max((long) this.buffer.capacity() * 2, needed);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Write journal is full");
+        }
+        this.buffer.force();
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.buffer.position(position);
+    }
+
+    public record Entry(ChunkPos pos, CellCodec codec, int offset, byte[] data, WriteMode mode) {
+    }
+}
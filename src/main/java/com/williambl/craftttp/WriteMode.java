@@ -0,0 +1,36 @@
+package com.williambl.craftttp;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * How levers are flipped when writing to memory cells.
+ */
+public enum WriteMode {
+    /**
+     * Each lever is pulled like a player would, with its own neighbour updates, click sound and game event.
+     */
+    CLICKY,
+    /**
+     * Lever states are set without sounds or game events, and the torches they drive are notified once per section
+     * after all of that section's levers have been set.
+     */
+    BULK;
+
+    public static @Nullable WriteMode byName(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Picks the mode to use when two pending writes to the same chunk are merged. The clicky path wins, so merging never
+     * silences a write that asked to be heard.
+     */
+    public WriteMode merge(WriteMode other) {
+        return this == CLICKY || other == CLICKY ? CLICKY : BULK;
+    }
+}
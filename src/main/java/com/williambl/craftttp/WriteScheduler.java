@@ -0,0 +1,401 @@
+package com.williambl.craftttp;
+
+import it.unimi.dsi.fastutil.longs.Long2IntRBTreeMap;
+import it.unimi.dsi.fastutil.longs.Long2IntSortedMap;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.williambl.craftttp.CraftTTP.LOGGER;
+
+/**
+ * Sits between the request handlers and {@link CraftTTP#writeChunk}, so that bursts of writes don't all land in the
+ * same tick.
+ * <p>
+ * Pending writes to the same chunk are merged, keeping only the most recent value for each byte, and are applied a
+ * slice at a time from the server tick until either the time or the block change budget for that tick runs out.
+ * <p>
+ * With a {@link WriteJournal}, every write is journaled before {@link #enqueue} returns, so writes which have been
+ * acknowledged survive the server stopping before they are applied. A slice stays visible to reads from the moment it
+ * leaves the queue until its codec has had time to settle, since torches only follow their levers a couple of ticks
+ * later.
+ * <p>
+ * Each write is given a sequence number, and every queued byte remembers the write it came from, so that {@link #flush}
+ * only waits for the writes queued before it.
+ */
+public class WriteScheduler {
+    private final long budgetNanos;
+    private final int budgetFlips;
+    private final @Nullable WriteJournal journal;
+    private final Map<ChunkPos, PendingChunk> pending = new LinkedHashMap<>();
+    // slices which have left the queue, oldest first, until the world has caught up with them
+    private final Map<ChunkPos, List<Slice>> settling = new HashMap<>();
+    // how many bytes of each write are still pending or settling, by sequence number
+    private final Long2IntSortedMap outstanding = new Long2IntRBTreeMap();
+    private final List<FlushWaiter> flushWaiters = new ArrayList<>();
+    private long pendingBytes;
+    private long ticks;
+    private long nextSequence = 1;
+
+    public WriteScheduler(long budgetNanos, int budgetFlips, @Nullable WriteJournal journal) {
+        this.budgetNanos = budgetNanos;
+        this.budgetFlips = budgetFlips;
+        this.journal = journal;
+    }
+
+    /**
+     * Queues a write, journaling it first if there is a journal.
+     *
+     * @throws IOException if the write couldn't be journaled, in which case it isn't queued either
+     */
+    public synchronized void enqueue(ChunkPos pos, CellCodec codec, int offset, byte[] data, WriteMode mode) throws IOException {
+        if (data.length == 0) {
+            return;
+        }
+
+        if (this.journal != null) {
+            this.journal.append(pos, codec, offset, data, mode);
+        }
+        this.queue(pos, codec, offset, data, mode);
+    }
+
+    private void queue(ChunkPos pos, CellCodec codec, int offset, byte[] data, WriteMode mode) {
+        long sequence = this.nextSequence++;
+        PendingChunk chunk = this.pending.computeIfAbsent(pos, p -> new PendingChunk(codec, mode));
+        chunk.codec = codec;
+        chunk.mode = chunk.mode.merge(mode);
+        this.pendingBytes -= chunk.mask.cardinality();
+        // the bytes being overwritten no longer hold up the writes they came from
+        this.release(chunk.sequences, chunk.mask, offset, Math.min(offset + data.length, chunk.data.length));
+        chunk.put(offset, data, sequence);
+        this.pendingBytes += chunk.mask.cardinality();
+        this.outstanding.put(sequence, data.length);
+    }
+
+    /**
+     * Queues every write left in the journal by the last run, e.g. because the server stopped or crashed before they
+     * were applied. Each write is passed to {@code onReplay} before it is queued. The writes are already journaled, so
+     * they stay in the journal until they are applied and saved. Writes which don't fit in their chunk are skipped, so
+     * that a bad record can't stop the server from starting.
+     *
+     * @return how many writes were replayed
+     */
+    public synchronized int replayJournal(LevelHeightAccessor level, Consumer<WriteJournal.Entry> onReplay) {
+        if (this.journal == null) {
+            return 0;
+        }
+
+        int replayed = 0;
+        for (WriteJournal.Entry entry : this.journal.read()) {
+            int capacity = entry.codec().capacity(level);
+            if (entry.offset() < 0 || (long) entry.offset() + entry.data().length > capacity) {
+                LOGGER.warn("Skipping journaled write of {} bytes to {} at offset {}, which doesn't fit in a chunk of {}", entry.data().length, entry.pos(), entry.offset(), capacity);
+                continue;
+            }
+
+            onReplay.accept(entry);
+            if (entry.data().length > 0) {
+                this.queue(entry.pos(), entry.codec(), entry.offset(), entry.data(), entry.mode());
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * Notes which journal records the world save just started will make redundant: every record written so far, apart
+     * from those for writes which haven't been applied yet. Must be called on the server thread, straight after the
+     * world is saved.
+     *
+     * @return the checkpoint to {@linkplain #completeCheckpoint complete} once the saved chunks are on disk, or null
+     * if there is no journal
+     */
+    public synchronized @Nullable Checkpoint beginCheckpoint() {
+        if (this.journal == null) {
+            return null;
+        }
+
+        List<WriteJournal.Entry> unapplied = new ArrayList<>();
+        for (var entry : this.pending.entrySet()) {
+            PendingChunk chunk = entry.getValue();
+            for (int start = chunk.mask.nextSetBit(0); start >= 0; start = chunk.mask.nextSetBit(start)) {
+                int end = chunk.mask.nextClearBit(start);
+                unapplied.add(new WriteJournal.Entry(entry.getKey(), chunk.codec, start, Arrays.copyOfRange(chunk.data, start, end), chunk.mode));
+                start = end;
+            }
+        }
+        return new Checkpoint(this.journal.epoch(), this.journal.records(), unapplied);
+    }
+
+    /**
+     * Drops the journal records which {@code checkpoint} made redundant, keeping its unapplied writes and every record
+     * written since it began. Does nothing if another checkpoint has completed in the meantime.
+     *
+     * @throws IOException if the journal couldn't be rewritten, in which case it is left as it was
+     */
+    public synchronized void completeCheckpoint(Checkpoint checkpoint) throws IOException {
+        if (this.journal == null || this.journal.epoch() != checkpoint.epoch()) {
+            return;
+        }
+
+        List<WriteJournal.Entry> records = this.journal.read();
+        List<WriteJournal.Entry> kept = new ArrayList<>(checkpoint.unapplied());
+        kept.addAll(records.subList(Math.min(checkpoint.records(), records.size()), records.size()));
+        this.journal.rewrite(kept);
+    }
+
+    /**
+     * Copies any pending or settling bytes in {@code [offset, offset + length)} of a chunk over {@code out}, so that
+     * reads see writes which haven't been applied to the world yet, or which the world hasn't caught up with.
+     */
+    public synchronized void overlay(ChunkPos pos, int offset, byte[] out, int outOffset, int length) {
+        @Nullable List<Slice> slices = this.settling.get(pos);
+        if (slices != null) {
+            for (Slice slice : slices) {
+                int start = Math.max(offset, slice.offset);
+                int end = Math.min(offset + length, slice.offset + slice.data.length);
+                if (start < end) {
+                    System.arraycopy(slice.data, start - slice.offset, out, outOffset + start - offset, end - start);
+                }
+            }
+        }
+
+        @Nullable PendingChunk chunk = this.pending.get(pos);
+        if (chunk != null) {
+            int end = Math.min(offset + length, chunk.data.length);
+            for (int i = chunk.mask.nextSetBit(offset); i >= 0 && i < end; i = chunk.mask.nextSetBit(i + 1)) {
+                out[outOffset + i - offset] = chunk.data[i];
+            }
+        }
+    }
+
+    /**
+     * @return a future which completes once every write queued before this call has been applied to the world, and
+     * the world has settled. Writes queued afterwards don't hold it up.
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        long mark = this.nextSequence - 1;
+        if (this.outstanding.isEmpty() || this.outstanding.firstLongKey() > mark) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var future = new CompletableFuture<Void>();
+        this.flushWaiters.add(new FlushWaiter(mark, future));
+        return future;
+    }
+
+    /**
+     * @return a future which completes once every write queued before this call is durable. With a journal that is as
+     * soon as the journal is on disk, and without one it is the same as {@link #flush}.
+     */
+    public CompletableFuture<Void> sync() {
+        if (this.journal == null) {
+            return this.flush();
+        }
+
+        this.journal.force();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public synchronized int queuedChunks() {
+        return this.pending.size();
+    }
+
+    public synchronized long queuedBytes() {
+        return this.pendingBytes;
+    }
+
+    /**
+     * Applies pending writes until this tick's budget is spent. Writes to chunks which aren't {@code ready} are left
+     * queued for a later tick. Must be called on the server thread.
+     */
+    public void tick(ServerLevel level, Predicate<ChunkPos> ready) {
+        synchronized (this) {
+            this.ticks++;
+            this.settling.values().removeIf(slices -> {
+                slices.removeIf(slice -> {
+                    if (slice.settledAt > this.ticks) {
+                        return false;
+                    }
+                    this.release(slice);
+                    return true;
+                });
+                return slices.isEmpty();
+            });
+        }
+        this.apply(level, this.budgetNanos, this.budgetFlips, ready, false);
+    }
+
+    /**
+     * Applies every pending write regardless of the budget, e.g. before the server shuts down.
+     */
+    public void drain(ServerLevel level) {
+        synchronized (this) {
+            this.settling.values().forEach(slices -> slices.forEach(this::release));
+            this.settling.clear();
+        }
+        this.apply(level, Long.MAX_VALUE, Integer.MAX_VALUE, pos -> true, true);
+    }
+
+    private void apply(ServerLevel level, long budgetNanos, int budgetFlips, Predicate<ChunkPos> ready, boolean draining) {
+        long start = System.nanoTime();
+        int flips = 0;
+        while (flips < budgetFlips && System.nanoTime() - start < budgetNanos) {
+            @Nullable Slice slice = this.takeSlice(Math.max(1, (budgetFlips - flips) / 8), ready);
+            if (slice == null) {
+                break;
+            }
+
+            flips += CraftTTP.writeChunk(level, slice.codec, slice.pos, slice.offset, slice.data, slice.mode);
+            // nothing reads while draining, so there is no need to wait for the world to settle
+            if (draining || slice.codec.settleTicks() == 0) {
+                this.settled(slice);
+            }
+        }
+
+        List<CompletableFuture<Void>> toComplete = new ArrayList<>();
+        synchronized (this) {
+            long lowest = this.outstanding.isEmpty() ? Long.MAX_VALUE : this.outstanding.firstLongKey();
+            this.flushWaiters.removeIf(waiter -> {
+                if (waiter.mark >= lowest) {
+                    return false;
+                }
+                toComplete.add(waiter.future);
+                return true;
+            });
+        }
+        toComplete.forEach(f -> f.complete(null));
+    }
+
+    private synchronized void settled(Slice slice) {
+        @Nullable List<Slice> slices = this.settling.get(slice.pos);
+        if (slices != null && slices.remove(slice)) {
+            this.release(slice);
+            if (slices.isEmpty()) {
+                this.settling.remove(slice.pos);
+            }
+        }
+    }
+
+    /**
+     * Takes a slice off the front of the queue, and moves it straight into {@link #settling} so that reads keep seeing
+     * it while it is being applied.
+     */
+    private synchronized @Nullable Slice takeSlice(int maxLength, Predicate<ChunkPos> ready) {
+        Iterator<Map.Entry<ChunkPos, PendingChunk>> iterator = this.pending.entrySet().iterator();
+        Map.Entry<ChunkPos, PendingChunk> entry;
+        do {
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            entry = iterator.next();
+        } while (!ready.test(entry.getKey()));
+
+        PendingChunk chunk = entry.getValue();
+        int start = chunk.mask.nextSetBit(0);
+        int end = Math.min(chunk.mask.nextClearBit(start), start + maxLength);
+        byte[] data = Arrays.copyOfRange(chunk.data, start, end);
+        long[] sequences = Arrays.copyOfRange(chunk.sequences, start, end);
+        chunk.mask.clear(start, end);
+        this.pendingBytes -= end - start;
+        if (chunk.mask.isEmpty()) {
+            iterator.remove();
+        }
+
+        var slice = new Slice(entry.getKey(), chunk.codec, start, data, sequences, chunk.mode, this.ticks + chunk.codec.settleTicks());
+        this.settling.computeIfAbsent(slice.pos, p -> new ArrayList<>()).add(slice);
+        return slice;
+    }
+
+    private void release(Slice slice) {
+        long run = 0;
+        int count = 0;
+        for (long sequence : slice.sequences) {
+            if (sequence != run) {
+                this.release(run, count);
+                run = sequence;
+                count = 0;
+            }
+            count++;
+        }
+        this.release(run, count);
+    }
+
+    private void release(long[] sequences, BitSet mask, int from, int to) {
+        long run = 0;
+        int count = 0;
+        for (int i = mask.nextSetBit(from); i >= 0 && i < to; i = mask.nextSetBit(i + 1)) {
+            if (sequences[i] != run) {
+                this.release(run, count);
+                run = sequences[i];
+                count = 0;
+            }
+            count++;
+        }
+        this.release(run, count);
+    }
+
+    private void release(long sequence, int bytes) {
+        if (bytes == 0) {
+            return;
+        }
+
+        int left = this.outstanding.get(sequence) - bytes;
+        if (left > 0) {
+            this.outstanding.put(sequence, left);
+        } else {
+            this.outstanding.remove(sequence);
+        }
+    }
+
+    /**
+     * What a journal checkpoint keeps: the writes which hadn't been applied when it began, and every record after the
+     * first {@code records} of epoch {@code epoch}.
+     */
+    public record Checkpoint(long epoch, int records, List<WriteJournal.Entry> unapplied) {
+    }
+
+    private record Slice(ChunkPos pos, CellCodec codec, int offset, byte[] data, long[] sequences, WriteMode mode, long settledAt) {
+    }
+
+    private record FlushWaiter(long mark, CompletableFuture<Void> future) {
+    }
+
+    private static class PendingChunk {
+        private byte[] data = new byte[0];
+        private long[] sequences = new long[0];
+        private final BitSet mask = new BitSet();
+        private CellCodec codec;
+        private WriteMode mode;
+
+        private PendingChunk(CellCodec codec, WriteMode mode) {
+            this.codec = codec;
+            this.mode = mode;
+        }
+
+        private void put(int offset, byte[] toWrite, long sequence) {
+            if (this.data.length < offset + toWrite.length) {
+                int length = Math.max(offset + toWrite.length, this.data.length * 2);
+                this.data = Arrays.copyOf(this.data, length);
+                this.sequences = Arrays.copyOf(this.sequences, length);
+            }
+            System.arraycopy(toWrite, 0, this.data, offset, toWrite.length);
+            Arrays.fill(this.sequences, offset, offset + toWrite.length, sequence);
+            this.mask.set(offset, offset + toWrite.length);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.williambl.craftttp.mixin;
+
+import com.williambl.craftttp.CellCodecs;
+import com.williambl.craftttp.CraftTTP;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(LevelChunk.class)
+public abstract class LevelChunkMixin {
+    @Inject(method = "setBlockState", at = @At("RETURN"))
+    private void craftttp$onSetBlockState(BlockPos pos, BlockState state, boolean isMoving, CallbackInfoReturnable<BlockState> cir) {
+        BlockState previous = cir.getReturnValue();
+        if (previous == null || !(CellCodecs.isCellState(state) || CellCodecs.isCellState(previous))) {
+            return;
+        }
+
+        if (((LevelChunk) (Object) this).getLevel() instanceof ServerLevel level && level.dimension() == Level.OVERWORLD) {
+            CraftTTP.onMemoryCellChanged(level, pos, state);
+        }
+    }
+}
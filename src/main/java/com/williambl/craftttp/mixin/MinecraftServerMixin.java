@@ -0,0 +1,16 @@
+package com.williambl.craftttp.mixin;
+
+import com.williambl.craftttp.CraftTTP;
+import net.minecraft.server.MinecraftServer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(MinecraftServer.class)
+public abstract class MinecraftServerMixin {
+    @Inject(method = "saveAllChunks", at = @At("RETURN"))
+    private void craftttp$onSaveAllChunks(boolean suppressLogs, boolean flush, boolean forced, CallbackInfoReturnable<Boolean> cir) {
+        CraftTTP.onChunksSaved((MinecraftServer) (Object) this, flush);
+    }
+}
@@ -0,0 +1,71 @@
+package com.williambl.craftttp;
+
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Encodes bytes into a synthetic chunk with each codec and reads them back.
+ */
+class CellCodecRoundTripTest {
+    static List<CellCodec> codecs() {
+        // the codecs look at block states, which need the registries
+        Fixtures.bootstrap();
+        return CellCodecs.ALL;
+    }
+
+    @ParameterizedTest
+    @MethodSource("codecs")
+    void formattedChunkReadsAsZeroes(CellCodec codec) {
+        LevelChunkSection[] sections = Fixtures.formattedChunk(codec);
+        int capacity = codec.capacity(Fixtures.OVERWORLD_HEIGHT);
+
+        byte[] out = new byte[capacity];
+        Arrays.fill(out, (byte) 0x5A);
+        codec.read(Fixtures.OVERWORLD_HEIGHT, sections, 0, out, 0, capacity);
+        assertArrayEquals(new byte[capacity], out);
+    }
+
+    @ParameterizedTest
+    @MethodSource("codecs")
+    void wholeChunkRoundTrips(CellCodec codec) {
+        LevelChunkSection[] sections = Fixtures.formattedChunk(codec);
+        int capacity = codec.capacity(Fixtures.OVERWORLD_HEIGHT);
+        byte[] data = new byte[capacity];
+        new Random(1234).nextBytes(data);
+
+        codec.encode(Fixtures.OVERWORLD_HEIGHT, sections, 0, data);
+        byte[] out = new byte[capacity];
+        codec.read(Fixtures.OVERWORLD_HEIGHT, sections, 0, out, 0, capacity);
+        assertArrayEquals(data, out);
+    }
+
+    @ParameterizedTest
+    @MethodSource("codecs")
+    void partialWriteOnlyChangesItsRange(CellCodec codec) {
+        LevelChunkSection[] sections = Fixtures.formattedChunk(codec);
+        int capacity = codec.capacity(Fixtures.OVERWORLD_HEIGHT);
+        // an odd offset and length, so that the range doesn't line up with a layer or a section
+        int offset = 1001;
+        byte[] data = new byte[777];
+        new Random(5678).nextBytes(data);
+
+        codec.encode(Fixtures.OVERWORLD_HEIGHT, sections, offset, data);
+        byte[] expected = new byte[capacity];
+        System.arraycopy(data, 0, expected, offset, data.length);
+        byte[] out = new byte[capacity];
+        codec.read(Fixtures.OVERWORLD_HEIGHT, sections, 0, out, 0, capacity);
+        assertArrayEquals(expected, out);
+
+        // and a read of just part of the range lands at the right place in the output
+        byte[] part = new byte[100];
+        codec.read(Fixtures.OVERWORLD_HEIGHT, sections, offset + 50, part, 0, part.length);
+        assertArrayEquals(Arrays.copyOfRange(data, 50, 150), part);
+    }
+}
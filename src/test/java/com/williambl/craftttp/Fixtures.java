@@ -0,0 +1,65 @@
+package com.williambl.craftttp;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Holder;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.util.CrudeIncrementalIntIdentityHashBiMap;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+/**
+ * Synthetic chunks for the tests and benchmarks: bare sections at overworld height, without a level or a server.
+ */
+final class Fixtures {
+    static final LevelHeightAccessor OVERWORLD_HEIGHT = new LevelHeightAccessor() {
+        @Override
+        public int getHeight() {
+            return 384;
+        }
+
+        @Override
+        public int getMinBuildHeight() {
+            return -64;
+        }
+    };
+
+    private static boolean bootstrapped;
+
+    private Fixtures() {
+    }
+
+    static synchronized void bootstrap() {
+        if (!bootstrapped) {
+            SharedConstants.tryDetectVersion();
+            Bootstrap.bootStrap();
+            bootstrapped = true;
+        }
+    }
+
+    /**
+     * @return the sections of a chunk formatted with {@code codec}
+     */
+    static LevelChunkSection[] formattedChunk(CellCodec codec) {
+        bootstrap();
+        // the codecs never look at biomes, so a single placeholder biome will do
+        Holder<Biome> biome = Holder.direct(null);
+        CrudeIncrementalIntIdentityHashBiMap<Holder<Biome>> biomes = CrudeIncrementalIntIdentityHashBiMap.create(1);
+        biomes.add(biome);
+
+        LevelChunkSection[] sections = new LevelChunkSection[OVERWORLD_HEIGHT.getSectionsCount()];
+        for (int i = 0; i < sections.length; i++) {
+            sections[i] = new LevelChunkSection(
+                    OVERWORLD_HEIGHT.getSectionYFromSectionIndex(i),
+                    new PalettedContainer<BlockState>(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES),
+                    new PalettedContainer<>(biomes, biome, PalettedContainer.Strategy.SECTION_BIOMES)
+            );
+        }
+        codec.format(OVERWORLD_HEIGHT, sections);
+        return sections;
+    }
+}